@@ -27,25 +27,125 @@ window.onload = function() {
 async function fetchResponse() {
   buttonCoolDown();
   const param = document.getElementById('searchbar').value;
-  let response = null;
   if (param === '') {
     shakeSearchBar();
     return;
   }
 
+  const url = `/api/analysis?name=${param}`;
+  if (window.EventSource) {
+    streamResponse(url);
+  } else {
+    await fetchAnalysis(url);
+  }
+}
+
+/**
+ * Streams the analysis from the backend, showing the Perspective charts and
+ * the comments as soon as their stages finish instead of once the whole
+ * analysis is done
+ *
+ * @param {string} url the url of the analysis
+ */
+function streamResponse(url) {
+  const source = new EventSource(url);
+  let chartsShown = false;
+  let commentsShown = 0;
+  let received = false;
+  // The previous results stay up until there is something new to show
+  const startShowing = () => {
+    if (!received) {
+      clearResults();
+      received = true;
+    }
+  };
+
+  source.addEventListener('perspective', (event) => {
+    startShowing();
+    renderDonutCharts(JSON.parse(event.data));
+    chartsShown = true;
+  });
+  source.addEventListener('comment', (event) => {
+    startShowing();
+    const scored = JSON.parse(event.data);
+    if (commentsShown < COMMENT_TO_STOP_AT) {
+      addListElement(scored.comment.text.replace('\n/g', ' -- '));
+      commentsShown++;
+    }
+  });
+  source.addEventListener('analysis', (event) => {
+    source.close();
+    const videoAnalysis = JSON.parse(event.data);
+    if (!received) {
+      // Nothing was shown yet, like when the analysis was cached
+      renderingHandler(videoAnalysis);
+      return;
+    }
+    if (!chartsShown) {
+      renderDonutCharts(videoAnalysis.perspectiveMap);
+    }
+    setTimeout(() => renderSummary(videoAnalysis), FEEDBACK_APPEARANCE_TIME);
+  });
+  source.addEventListener('error', (event) => {
+    source.close();
+    if (event.data) {
+      // Sent by the server when the analysis failed or timed out
+      alert(JSON.parse(event.data).message);
+    } else if (!received) {
+      // EventSource doesn't tell why the stream couldn't be opened, but the
+      // plain request answers with a status that does
+      fetchAnalysis(url);
+    } else {
+      alert(errorMessage(undefined));
+    }
+  });
+}
+
+/**
+ * Fetches the whole analysis in one response and populates the screen
+ *
+ * @param {string} url the url of the analysis
+ */
+async function fetchAnalysis(url) {
+  let response = null;
   try {
-    response = await getData(`/api/analysis?name=${param}`);
+    response = await getData(url);
   } catch (e) {
     console.error(e);
+    alert(errorMessage(e.status));
+    return;
   }
-  if (response) {
-    if (response.status == 500) {
-      // This will hit when comments are disabled for the video.
-      alert('The video you selected is incompatible with this tool. Please try again.');
-      return;
-    }
-    renderingHandler(response);
+  renderingHandler(response);
+}
+
+/**
+ * Explains why the analysis couldn't be shown
+ *
+ * @param {number} status the HTTP status of the response,
+ * or undefined if there was none
+ * @returns {string} the message to show
+ */
+function errorMessage(status) {
+  if (status === 504) {
+    // The analysis took too long, but keeps running and is cached once done
+    return 'The analysis is taking longer than usual. ' +
+      'Please try again in a moment.';
+  }
+  if (status === 429) {
+    // Out of YouTube quota for now, searches are the first to run out
+    return 'Too many videos are being looked up right now. ' +
+      'Please try again later, or paste a video link instead of searching.';
+  }
+  if (status === 503) {
+    return 'A service the analysis needs is unavailable. ' +
+      'Please try again in a few minutes.';
   }
+  if (status === undefined) {
+    return 'The server could not be reached. Please try again.';
+  }
+  // This will hit when comments are disabled for the video.
+  return 'The video you selected is incompatible with this tool. ' +
+    'Please try again.';
 }
 
 /**
@@ -55,27 +155,42 @@ async function fetchResponse() {
  * which contains all of the data.
  */
 function renderingHandler(videoAnalysis) {
-  const charts = document.getElementById('charts');
-  const list = document.getElementById('list');
-  const card = document.getElementById('videocard-wrapper');
-
-  removeAllChildNodes(charts);
-  removeAllChildNodes(list);
-  removeAllChildNodes(card);
+  clearResults();
+  // A partial analysis leaves out the parts whose API was unavailable
   renderDonutCharts(videoAnalysis.perspectiveMap);
   const totalComments = renderComments(videoAnalysis.commentArray);
   const commentsRenderTime = totalComments * COMMENT_APPEARANCE_TIME;
-  const sentiment = determineSentiment(
-      videoAnalysis.magnitudeAndScore.magnitude,
-      videoAnalysis.magnitudeAndScore.score,
-  );
-  setTimeout(() => {
-    addFeedbackResult(sentiment);
+  setTimeout(() => renderSummary(videoAnalysis),
+      commentsRenderTime + FEEDBACK_APPEARANCE_TIME);
+}
+
+/**
+ * Removes the results of the previous analysis from the screen
+ */
+function clearResults() {
+  removeAllChildNodes(document.getElementById('charts'));
+  removeAllChildNodes(document.getElementById('list'));
+  removeAllChildNodes(document.getElementById('videocard-wrapper'));
+}
+
+/**
+ * Shows the overall sentiment and the video card, which come last
+ *
+ * @param {object} videoAnalysis the whole analysis
+ */
+function renderSummary(videoAnalysis) {
+  if (videoAnalysis.magnitudeAndScore) {
+    addFeedbackResult(determineSentiment(
+        videoAnalysis.magnitudeAndScore.magnitude,
+        videoAnalysis.magnitudeAndScore.score,
+    ));
+  }
+  if (videoAnalysis.videoInfo) {
     createCard(videoAnalysis.videoId,
         videoAnalysis.videoInfo.name,
         videoAnalysis.videoInfo.channel,
     );
-  }, commentsRenderTime + FEEDBACK_APPEARANCE_TIME);
+  }
 }
 
 /**
@@ -139,7 +254,7 @@ function createCard(id, name, channel) {
 function renderComments(array) {
   const totalComments = Math.min(COMMENT_TO_STOP_AT, array.length);
   for (let i = 0; i < totalComments; i++) {
-    const filteredValue = array[i].comment.replace('\n/g', ' -- ');
+    const filteredValue = array[i].text.replace('\n/g', ' -- ');
     setTimeout(() => {
       addListElement(filteredValue);
     }, (i+1) * COMMENT_APPEARANCE_TIME);
@@ -4,6 +4,7 @@
  *
  * @param {string} url the url string to send
  * @returns {Promise<object>} the response object
+ * @throws {Error} with the status of the response, if it isn't a 2xx one
  */
 // this function is used in analysis.js
 // eslint-disable-next-line no-unused-vars
@@ -16,12 +17,19 @@ async function getData(url) {
     return cachedData;
   }
 
+  const response = await fetch(url);
+  if (!response.ok) {
+    // Errors aren't cached, so trying again asks the server again
+    const error = new Error(`${url} failed with status ${response.status}`);
+    error.status = response.status;
+    throw error;
+  }
+
   const cacheStorage = await caches.open(cacheName);
-  await cacheStorage.add(url);
-  cachedData = await getCachedData(cacheName, url);
+  await cacheStorage.put(url, response.clone());
   await deleteOldCaches(cacheName);
 
-  return cachedData;
+  return await response.json();
 }
 
 /**
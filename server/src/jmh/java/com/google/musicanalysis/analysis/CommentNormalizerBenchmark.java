@@ -0,0 +1,79 @@
+package com.google.musicanalysis.analysis;
+
+import com.google.musicanalysis.types.Comment;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares filtering and joining a batch of 100 typical comments with CommentNormalizer and with
+ * the regexes it replaced.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CommentNormalizerBenchmark {
+  private static final int BATCHES = 64;
+
+  private static final String[] SAMPLES = {
+    "This song is amazing, I've listened to it every day this week",
+    "Who's here in 2020?",
+    "The bridge at 2:31 ❤️ gives me chills every single time",
+    "\"Legend\" says he's still singing",
+    "I love this so much!!! 😍😍",
+    "Underrated — should have way more views.",
+    "Came here from TikTok • not disappointed",
+    "© 2020 all rights reserved lol",
+    "🔥🔥🔥",
+    "this reminds me of summer nights with my friends, such a vibe"
+  };
+
+  private final String[][] batches = new String[BATCHES][];
+  private final AnalysisPipeline pipeline = new AnalysisPipeline("");
+  private int round;
+
+  @Setup
+  public void createBatches() {
+    Random random = new Random(1);
+    for (int batch = 0; batch < BATCHES; batch++) {
+      String[] texts = new String[100];
+      for (int i = 0; i < texts.length; i++) {
+        texts[i] = SAMPLES[random.nextInt(SAMPLES.length)] + (i % 7 == 0 ? " " + i : "");
+      }
+      batches[batch] = texts;
+    }
+  }
+
+  /** Filtering changes the comments, so each call gets new ones */
+  private ArrayList<Comment> nextBatch() {
+    String[] texts = batches[round++ % BATCHES];
+    ArrayList<Comment> comments = new ArrayList<>(texts.length);
+    for (String text : texts) {
+      comments.add(new Comment(text, 1));
+    }
+    return comments;
+  }
+
+  @Benchmark
+  public String regexes() {
+    return LegacyCommentFilter.convertToString(LegacyCommentFilter.filterComments(nextBatch()));
+  }
+
+  @Benchmark
+  public String normalizer() {
+    return pipeline.convertToString(pipeline.filterComments(nextBatch()));
+  }
+}
@@ -0,0 +1,106 @@
+package com.google.musicanalysis.cache;
+
+import com.google.musicanalysis.types.CacheValue;
+import com.google.musicanalysis.types.Comment;
+import com.google.musicanalysis.types.NLPResult;
+import com.google.musicanalysis.types.VideoAnalysis;
+import com.google.musicanalysis.types.VideoInfo;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import javax.crypto.spec.SecretKeySpec;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * How long starting up takes with a checkpoint of 10k and 100k entries, each a typical analysis of
+ * 20 comments: opening the journal, and then reading one entry the cache doesn't have.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CacheJournalStartupBenchmark {
+  private static final SecretKeySpec KEY =
+      new SecretKeySpec("benchmark key".getBytes(StandardCharsets.UTF_8), "Blowfish");
+
+  @Param({"10000", "100000"})
+  public int entries;
+
+  private Path directory;
+
+  @Setup
+  public void writeCheckpoint() throws IOException {
+    directory = Files.createTempDirectory("journal-benchmark");
+    HashMap<String, CacheValue> cache = new HashMap<>();
+    CacheJournal journal = new CacheJournal(directory, KEY, Duration.ofDays(1));
+    journal.replay(cache::put, cache::remove);
+    journal.start(() -> cache);
+    for (int i = 0; i < entries; i++) {
+      CacheValue value = new CacheValue(analysis(i));
+      cache.put(key(i), value);
+      journal.appendPut(key(i), value);
+    }
+    // Writes everything to a checkpoint
+    journal.close();
+  }
+
+  @TearDown
+  public void deleteCheckpoint() throws IOException {
+    try (Stream<Path> files = Files.walk(directory)) {
+      files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+    }
+  }
+
+  @Benchmark
+  public CacheJournal open() throws IOException {
+    CacheJournal journal = new CacheJournal(directory, KEY, Duration.ofDays(1));
+    journal.replay((requestUrl, value) -> {}, requestUrl -> {});
+    return journal;
+  }
+
+  @Benchmark
+  public CacheValue openAndLookUp() throws IOException {
+    return open().lookup(key(entries / 2));
+  }
+
+  private static String key(int i) {
+    return "/api/analysis?name=video" + i;
+  }
+
+  private static VideoAnalysis analysis(int i) {
+    HashMap<String, String> perspectiveMap = new HashMap<>();
+    perspectiveMap.put("TOXICITY", "0.0123");
+    perspectiveMap.put("INSULT", "0.0045");
+    ArrayList<Comment> comments = new ArrayList<>();
+    for (int c = 0; c < 20; c++) {
+      comments.add(new Comment("This song is amazing, I've listened to it " + c + " times", c));
+    }
+    return new VideoAnalysis(
+        perspectiveMap,
+        new NLPResult(12.75, -0.125),
+        comments,
+        "video" + i,
+        new VideoInfo("Song " + i, "Channel", Instant.ofEpochSecond(1256453000)));
+  }
+}
@@ -0,0 +1,71 @@
+package com.google.musicanalysis.site;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares counting the genres of 1000 liked videos through TopicDictionary and by name, the way
+ * LegacyGenres does. Videos have 1 to 3 topics, one in ten has none, and some have a music topic
+ * Youtube doesn't document.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TopicDictionaryBenchmark {
+  private static final String[] TOPICS = {
+    "Music", "Pop_music", "Hip_hop_music", "Rock_music", "Electronic_music", "Music_of_Asia",
+    "Entertainment", "Film", "Video_game_culture", "Knowledge", "Lifestyle_(sociology)",
+    "Sea_shanty_music"
+  };
+
+  private JsonArray videos;
+
+  @Setup
+  public void createLikedVideos() {
+    Random random = new Random(1);
+    videos = new JsonArray();
+    for (int i = 0; i < 1000; i++) {
+      JsonObject video = new JsonObject();
+      if (random.nextInt(10) != 0) {
+        JsonArray topicCategories = new JsonArray();
+        for (int topics = 1 + random.nextInt(3); topics > 0; topics--) {
+          topicCategories.add(
+              "https://en.wikipedia.org/wiki/" + TOPICS[random.nextInt(TOPICS.length)]);
+        }
+        JsonObject topicDetails = new JsonObject();
+        topicDetails.add("topicCategories", topicCategories);
+        video.add("topicDetails", topicDetails);
+      }
+      videos.add(video);
+    }
+  }
+
+  @Benchmark
+  public LegacyGenres byName() {
+    LegacyGenres genres = new LegacyGenres();
+    genres.calculateMusicCount(videos);
+    return genres;
+  }
+
+  @Benchmark
+  public YoutubeGenres dictionary() {
+    YoutubeGenres genres = new YoutubeGenres();
+    genres.calculateMusicCount(videos);
+    return genres;
+  }
+}
@@ -0,0 +1,65 @@
+package com.google.musicanalysis.types;
+
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonWriter;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares writing an analysis response with a new Gson's reflection, as the servlets used to,
+ * against streaming it through the adapter, as JsonResponses does. Run it with -prof gc for the
+ * bytes allocated per response (gc.alloc.rate.norm).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+// Gson's reflection reads the fields of java.time.Instant
+@Fork(value = 1, jvmArgsAppend = "--add-opens=java.base/java.time=ALL-UNNAMED")
+public class JsonAdaptersBenchmark {
+  private static final int WRITER_BUFFER_CHARS = 2048;
+
+  @Param({"20", "100"})
+  public int comments;
+
+  private VideoAnalysis analysis;
+  // Stands in for the servlet's output
+  private final OutputStream body = OutputStream.nullOutputStream();
+
+  @Setup
+  public void createAnalysis() {
+    analysis = SampleAnalyses.typical(comments);
+  }
+
+  @Benchmark
+  public void gsonReflection() throws IOException {
+    body.write(new Gson().toJson(analysis).getBytes(StandardCharsets.UTF_8));
+  }
+
+  @Benchmark
+  public void adapter() throws IOException {
+    JsonWriter writer =
+        new JsonWriter(
+            new BufferedWriter(
+                new OutputStreamWriter(body, StandardCharsets.UTF_8), WRITER_BUFFER_CHARS));
+    writer.setHtmlSafe(true);
+    JsonAdapters.VIDEO_ANALYSIS.write(writer, analysis);
+    writer.flush();
+  }
+}
@@ -0,0 +1,892 @@
+package com.google.musicanalysis.analysis;
+
+import com.github.benmanes.caffeine.cache.AsyncCache;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import com.google.gson.*;
+import com.google.musicanalysis.api.SharedHttpClient;
+import com.google.musicanalysis.api.UpstreamUnavailableException;
+import com.google.musicanalysis.api.naturallanguage.*;
+import com.google.musicanalysis.api.perspective.*;
+import com.google.musicanalysis.api.youtube.*;
+import com.google.musicanalysis.types.*;
+import com.google.musicanalysis.util.Metrics;
+import com.google.musicanalysis.util.NamedThreadFactory;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.MalformedURLException;
+import java.net.http.HttpTimeoutException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * Runs the analysis of a single video as a small graph of asynchronous stages. Fetching the
+ * comments is the only prerequisite, after that the video info lookup, the Perspective analysis and
+ * the Natural Language analysis all run at the same time, so the total latency follows the slowest
+ * stage instead of the sum of all of them.
+ *
+ * <pre>
+ *            +--> videoInfo ----+
+ * comments --+--> perspective --+--> VideoAnalysis
+ *            +--> nlp ----------+
+ * </pre>
+ *
+ * <p>Comments are fetched a page at a time, up to a configured depth. Each page is handed to the
+ * Natural Language analysis as soon as it arrives, while the next page is being fetched.
+ *
+ * <p>The analysis can do without the three stages after the comments. If the API one of them
+ * needs is unavailable, the analysis comes back partial instead of failing, with the stage listed
+ * in {@link VideoAnalysis#unavailable}.
+ */
+public class AnalysisPipeline {
+  private static final Logger LOGGER = Logger.getLogger(AnalysisPipeline.class.getName());
+
+  // Threads that run the stages themselves
+  private static final int STAGE_POOL_SIZE =
+      Integer.parseInt(System.getenv().getOrDefault("ANALYSIS_POOL_SIZE", "32"));
+  // Maximum number of Natural Language calls a single request may have in flight
+  private static final int NLP_CONCURRENCY_PER_REQUEST =
+      Integer.parseInt(System.getenv().getOrDefault("NLP_CONCURRENCY_PER_REQUEST", "8"));
+
+  // How deep into a video's comments the analysis samples
+  private static final int MAX_COMMENTS =
+      Integer.parseInt(System.getenv().getOrDefault("COMMENT_MAX_COMMENTS", "100"));
+  private static final int MAX_COMMENT_PAGES =
+      Integer.parseInt(System.getenv().getOrDefault("COMMENT_MAX_PAGES", "5"));
+  // Either relevance or time
+  private static final String COMMENT_ORDER =
+      System.getenv().getOrDefault("COMMENT_ORDER", "relevance");
+  // Most comment threads Youtube returns in one page
+  private static final int COMMENT_PAGE_SIZE = 100;
+  // Only the text and likes of each comment are read
+  private static final String COMMENT_FIELDS =
+      "nextPageToken,items/snippet/topLevelComment/snippet(textOriginal,likeCount)";
+  // Perspective rejects texts over 20 KB, so the comments sent to it are cut off below that
+  private static final int PERSPECTIVE_MAX_BYTES = 20000;
+
+  // Sentiment of comment texts seen before, on any video
+  private static final ContentAddressedCache<NLPResult> SENTIMENT_CACHE =
+      new ContentAddressedCache<>(
+          "nlp.sentimentCache",
+          Long.parseLong(System.getenv().getOrDefault("SENTIMENT_CACHE_MAX_ENTRIES", "100000")),
+          Duration.ofHours(
+              Long.parseLong(System.getenv().getOrDefault("SENTIMENT_CACHE_TTL_HOURS", "168"))),
+          true,
+          // SentimentFeed.await() keys a map by result, so identical comments need their own
+          result -> new NLPResult(result.magnitude, result.score));
+
+  // Perspective scores of comment texts analyzed before, such as when a video is analyzed again.
+  // Keyed by the exact text, since Perspective may score texts that only differ in whitespace or
+  // composition differently.
+  private static final ContentAddressedCache<HashMap<String, String>> PERSPECTIVE_CACHE =
+      new ContentAddressedCache<>(
+          "perspective.resultCache",
+          Long.parseLong(System.getenv().getOrDefault("PERSPECTIVE_CACHE_MAX_ENTRIES", "10000")),
+          Duration.ofHours(
+              Long.parseLong(System.getenv().getOrDefault("PERSPECTIVE_CACHE_TTL_HOURS", "24"))),
+          false,
+          HashMap::new);
+
+  // Video ids that search queries resolved to, since search is the most expensive YouTube call
+  private static final Cache<String, String> SEARCH_CACHE =
+      Caffeine.newBuilder()
+          .maximumSize(
+              Long.parseLong(System.getenv().getOrDefault("SEARCH_CACHE_MAX_ENTRIES", "10000")))
+          .expireAfterWrite(
+              Duration.ofHours(
+                  Long.parseLong(System.getenv().getOrDefault("SEARCH_CACHE_TTL_HOURS", "6"))))
+          .recordStats()
+          .build();
+
+  // Video information looked up before, or being looked up by a batch ahead of the analyses
+  private static final AsyncCache<String, VideoInfo> VIDEO_INFO_CACHE =
+      Caffeine.newBuilder()
+          .maximumSize(
+              Long.parseLong(System.getenv().getOrDefault("VIDEO_INFO_CACHE_MAX_ENTRIES", "10000")))
+          .expireAfterWrite(
+              Duration.ofHours(
+                  Long.parseLong(System.getenv().getOrDefault("VIDEO_INFO_CACHE_TTL_HOURS", "1"))))
+          .recordStats()
+          .buildAsync();
+
+  // Most ids the videos API accepts in one call
+  private static final int VIDEO_INFO_BATCH_SIZE = 50;
+
+  static {
+    Metrics.register(
+        "youtube.videoInfoCache",
+        () -> {
+          CacheStats stats = VIDEO_INFO_CACHE.synchronous().stats();
+          Map<String, Object> result = new LinkedHashMap<>();
+          result.put("size", VIDEO_INFO_CACHE.synchronous().estimatedSize());
+          result.put("hitRate", stats.hitRate());
+          result.put("hits", stats.hitCount());
+          result.put("misses", stats.missCount());
+          return result;
+        });
+    Metrics.register(
+        "youtube.searchCache",
+        () -> {
+          CacheStats stats = SEARCH_CACHE.stats();
+          Map<String, Object> result = new LinkedHashMap<>();
+          result.put("size", SEARCH_CACHE.estimatedSize());
+          result.put("hitRate", stats.hitRate());
+          result.put("hits", stats.hitCount());
+          result.put("misses", stats.missCount());
+          return result;
+        });
+  }
+
+  private static final ExecutorService STAGE_EXECUTOR =
+      Executors.newFixedThreadPool(STAGE_POOL_SIZE, new NamedThreadFactory("analysis-stage"));
+
+  private static final Pattern WHITESPACE_RUN = Pattern.compile("\\s+");
+
+  private static final Listener NO_LISTENER = new Listener() {};
+
+  private final String videoId;
+  private final Listener listener;
+  private final StageTimings timings = new StageTimings();
+  // Only used by the comments stage
+  private final CommentNormalizer normalizer = new CommentNormalizer();
+
+  /**
+   * Gets the results of the stages as they finish, before the whole analysis is done. Methods are
+   * called from the stages' threads, so they must be thread safe and return quickly.
+   */
+  public interface Listener {
+    /** Called once the video's name, channel and publish date were looked up */
+    default void onVideoInfo(VideoInfo videoInfo) {}
+
+    /**
+     * Called each time the sentiment of a comment was analyzed.
+     *
+     * @param comment the comment
+     * @param sentiment the sentiment of the comment
+     * @param weightedSentiment the sentiment of every comment analyzed so far, weighted by likes
+     */
+    default void onCommentScored(
+        Comment comment, NLPResult sentiment, NLPResult weightedSentiment) {}
+
+    /** Called once the Perspective analysis of the comments has finished */
+    default void onPerspective(HashMap<String, String> perspectiveMap) {}
+  }
+
+  /** @param videoId the id of the video, see {@link #resolveVideoId} */
+  public AnalysisPipeline(String videoId) {
+    this(videoId, NO_LISTENER);
+  }
+
+  /**
+   * @param videoId the id of the video, see {@link #resolveVideoId}
+   * @param listener gets the results of the stages as they finish
+   */
+  public AnalysisPipeline(String videoId, Listener listener) {
+    this.videoId = videoId;
+    this.listener = listener;
+  }
+
+  /** Stops the shared pools. Called once when the server shuts down. */
+  public static void shutdown() {
+    STAGE_EXECUTOR.shutdownNow();
+  }
+
+  /** @return the time each stage took. Complete once the analysis has finished. */
+  public StageTimings getTimings() {
+    return timings;
+  }
+
+  /**
+   * Works out which video the user is probably asking for without calling YouTube, so that a cached
+   * analysis can be found before the input is resolved.
+   *
+   * @param userInput a video id, or a search query for the video
+   * @return the input if it looks like a video id, the video a search for it found before, or null
+   */
+  public static String knownVideoId(String userInput) {
+    if (looksLikeVideoId(userInput)) {
+      return userInput;
+    }
+    return SEARCH_CACHE.getIfPresent(normalizeQuery(userInput));
+  }
+
+  /**
+   * Works out which video the user is asking for. Input that looks like a video id is checked with
+   * a videos lookup, whose result the analysis reuses. Anything else, including 11 character
+   * queries that aren't the id of a video, is searched for.
+   *
+   * @param userInput a video id, or a search query for the video
+   * @return the id of the video
+   */
+  public static String resolveVideoId(String userInput) throws IOException {
+    if (looksLikeVideoId(userInput) && isVideo(userInput)) {
+      return userInput;
+    }
+    return getFirstVideoFromSearch(userInput);
+  }
+
+  /** @return whether YouTube has a video with the id */
+  private static boolean isVideo(String videoId) throws IOException {
+    CompletableFuture<VideoInfo> known = VIDEO_INFO_CACHE.getIfPresent(videoId);
+    if (known != null) {
+      try {
+        SharedHttpClient.await(known);
+        return true;
+      } catch (IOException e) {
+        // Looked up again below, which tells a missing video apart from a failed lookup
+      }
+    }
+
+    VideoInfo videoInfo =
+        SharedHttpClient.await(requestVideoInfos(Collections.singletonList(videoId))).get(videoId);
+    if (videoInfo == null) {
+      return false;
+    }
+    VIDEO_INFO_CACHE.put(videoId, CompletableFuture.completedFuture(videoInfo));
+    return true;
+  }
+
+  /**
+   * Runs every stage and waits for the result.
+   *
+   * @return the analysis of the video
+   */
+  public VideoAnalysis run() throws IOException {
+    return SharedHttpClient.await(runAsync());
+  }
+
+  /**
+   * Wires up the stages. The returned future completes exceptionally with a CompletionException
+   * wrapping an IOException if any upstream call fails, other than those of a stage that is left
+   * out because its API is unavailable.
+   *
+   * @return a future of the analysis of the video
+   */
+  public CompletableFuture<VideoAnalysis> runAsync() {
+    long start = System.nanoTime();
+
+    SentimentFeed sentiment = new SentimentFeed();
+    CompletableFuture<FetchedComments> commentsStage =
+        stage("comments", () -> fetchComments(videoId, sentiment));
+
+    // Stages left out because their API is unavailable, the analysis is partial without them
+    Set<String> unavailable = ConcurrentHashMap.newKeySet();
+    CompletableFuture<VideoInfo> videoInfoStage =
+        commentsStage.thenCompose(
+            fetched ->
+                optionalStage(
+                    "videoInfo",
+                    unavailable,
+                    () -> {
+                      VideoInfo videoInfo = getVideoInfo(fetched.videoId);
+                      listener.onVideoInfo(videoInfo);
+                      return videoInfo;
+                    }));
+    CompletableFuture<HashMap<String, String>> perspectiveStage =
+        commentsStage.thenCompose(
+            fetched ->
+                optionalStage(
+                    "perspective",
+                    unavailable,
+                    () -> {
+                      HashMap<String, String> perspectiveMap =
+                          analyzeWithPerspective(convertToString(fetched.comments));
+                      listener.onPerspective(perspectiveMap);
+                      return perspectiveMap;
+                    }));
+    CompletableFuture<NLPResult> nlpStage =
+        commentsStage.thenCompose(
+            fetched ->
+                optionalStage(
+                    "nlp",
+                    unavailable,
+                    () -> createWeightedSentiment(sentiment.await(fetched.comments))));
+
+    return CompletableFuture.allOf(videoInfoStage, perspectiveStage, nlpStage)
+        .thenApply(
+            ignored -> {
+              FetchedComments fetched = commentsStage.join();
+              return new VideoAnalysis(
+                  perspectiveStage.join(),
+                  nlpStage.join(),
+                  fetched.comments,
+                  fetched.videoId,
+                  videoInfoStage.join(),
+                  new ArrayList<>(new TreeSet<>(unavailable)));
+            })
+        .whenComplete(
+            (result, error) -> {
+              timings.record("total", System.nanoTime() - start);
+              LOGGER.fine(() -> String.format("Analysis of '%s' took %s", videoId, timings));
+            });
+  }
+
+  /**
+   * Runs a timed stage on the stage pool.
+   *
+   * @param name the name the stage is recorded under
+   * @param body the work done by the stage
+   * @return a future of the stage's result
+   */
+  private <T> CompletableFuture<T> stage(String name, IOSupplier<T> body) {
+    return CompletableFuture.supplyAsync(() -> timings.time(name, unchecked(body)), STAGE_EXECUTOR);
+  }
+
+  /**
+   * Runs a stage the analysis can do without. If the stage's upstream API is unavailable, see
+   * UpstreamUnavailableException, or took longer than its timeout, the stage's result is null and
+   * its name is added to unavailable. Any other failure fails the analysis.
+   */
+  private <T> CompletableFuture<T> optionalStage(
+      String name, Set<String> unavailable, IOSupplier<T> body) {
+    return stage(name, body)
+        .exceptionally(
+            error -> {
+              if (!isUnavailable(error)) {
+                throw error instanceof CompletionException
+                    ? (CompletionException) error
+                    : new CompletionException(error);
+              }
+              LOGGER.log(
+                  Level.WARNING, error, () -> "Analyzing '" + videoId + "' without " + name);
+              unavailable.add(name);
+              return null;
+            });
+  }
+
+  /**
+   * @return whether the error is, or was caused by, an UpstreamUnavailableException or an
+   *     HttpTimeoutException
+   */
+  private static boolean isUnavailable(Throwable error) {
+    for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+      if (cause instanceof UpstreamUnavailableException || cause instanceof HttpTimeoutException) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** A supplier that may fail with an IOException, like every upstream API call. */
+  @FunctionalInterface
+  private interface IOSupplier<T> {
+    T get() throws IOException;
+  }
+
+  private static <T> Supplier<T> unchecked(IOSupplier<T> body) {
+    return () -> {
+      try {
+        return body.get();
+      } catch (IOException e) {
+        throw new CompletionException(e);
+      }
+    };
+  }
+
+  /** The comments of a video, together with the id they were fetched for. */
+  private static class FetchedComments {
+    final String videoId;
+    final ArrayList<Comment> comments;
+
+    FetchedComments(String videoId, ArrayList<Comment> comments) {
+      this.videoId = videoId;
+      this.comments = comments;
+    }
+  }
+
+  /**
+   * Fetches the top comments of the video, up to MAX_COMMENT_PAGES pages and MAX_COMMENTS comments.
+   * The analysis is stored under the video's id, so a failure isn't retried with another video.
+   *
+   * @param videoId the id of the video
+   * @param sentiment gets each page of comments as soon as it arrives
+   * @return the comments and the id of the video they belong to
+   */
+  private FetchedComments fetchComments(String videoId, SentimentFeed sentiment)
+      throws IOException {
+    YoutubeResponses.CommentPage page =
+        SharedHttpClient.await(requestCommentPage(videoId, null, MAX_COMMENTS));
+
+    ArrayList<Comment> comments = new ArrayList<>();
+    int pages = 1;
+    while (true) {
+      List<Comment> sampled = filterComments(page.comments);
+      if (sampled.size() > MAX_COMMENTS - comments.size()) {
+        sampled = sampled.subList(0, MAX_COMMENTS - comments.size());
+      }
+      comments.addAll(sampled);
+
+      // The next page is requested before this one is handed on, so the two overlap
+      int remaining = MAX_COMMENTS - comments.size();
+      CompletableFuture<YoutubeResponses.CommentPage> next = null;
+      if (page.nextPageToken != null && pages < MAX_COMMENT_PAGES && remaining > 0) {
+        next = requestCommentPage(videoId, page.nextPageToken, remaining);
+        pages++;
+      }
+
+      sentiment.add(sampled);
+      if (next == null) {
+        break;
+      }
+      page = SharedHttpClient.await(next);
+    }
+
+    return new FetchedComments(videoId, comments);
+  }
+
+  /**
+   * Requests a page of the video's comment threads.
+   *
+   * @param videoId the id of the video
+   * @param pageToken the token of the page, or null for the first page
+   * @param maxComments the most comments needed from the page
+   * @return a future of the page
+   */
+  private static CompletableFuture<YoutubeResponses.CommentPage> requestCommentPage(
+      String videoId, String pageToken, int maxComments) throws IOException {
+    // Use like this: {url_parameter, value}
+    HashMap<String, String> commentArgs = new HashMap<>();
+    commentArgs.put("part", "snippet");
+    commentArgs.put("videoId", videoId);
+    commentArgs.put("maxResults", String.valueOf(Math.min(maxComments, COMMENT_PAGE_SIZE)));
+    commentArgs.put("order", COMMENT_ORDER);
+    commentArgs.put("fields", COMMENT_FIELDS);
+    if (pageToken != null) {
+      commentArgs.put("pageToken", pageToken);
+    }
+    return new YoutubeRequest("commentThreads", commentArgs)
+        .getResultAsync(YoutubeResponses::readCommentPage);
+  }
+
+  /**
+   * Helper function that gets the first video from Youtube search request. Results are cached by
+   * query, ignoring case and whitespace.
+   *
+   * @param videoParam the video parameter to put in the url
+   * @return the video id as string
+   */
+  private static String getFirstVideoFromSearch(String videoParam)
+      throws MalformedURLException, IOException {
+    try {
+      return SEARCH_CACHE.get(
+          normalizeQuery(videoParam),
+          query -> {
+            try {
+              return searchForFirstVideo(videoParam);
+            } catch (IOException e) {
+              throw new UncheckedIOException(e);
+            }
+          });
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+  }
+
+  /**
+   * Folds case and whitespace, so that queries that only differ in those share a search result.
+   *
+   * @param query a search query
+   * @return the key the query's result is cached under
+   */
+  private static String normalizeQuery(String query) {
+    return WHITESPACE_RUN.matcher(query.strip()).replaceAll(" ").toLowerCase(Locale.ROOT);
+  }
+
+  private static String searchForFirstVideo(String videoParam) throws IOException {
+    HashMap<String, String> videoArgs = new HashMap<>();
+    videoArgs.put("q", videoParam);
+    videoArgs.put("type", "video");
+    return new YoutubeRequest("search", videoArgs).getResult(YoutubeResponses::readFirstVideoId);
+  }
+
+  /**
+   * Looks up the name, channel and publish date of a video, unless it was looked up recently or is
+   * being looked up already.
+   *
+   * @param videoId the id of the video
+   * @return the video's information
+   */
+  private VideoInfo getVideoInfo(String videoId) throws IOException {
+    return SharedHttpClient.await(
+        VIDEO_INFO_CACHE.get(videoId, (id, executor) -> requestVideoInfo(id)));
+  }
+
+  private static CompletableFuture<VideoInfo> requestVideoInfo(String videoId) {
+    HashMap<String, String> nameArgs = new HashMap<>();
+    nameArgs.put("part", "snippet");
+    nameArgs.put("id", videoId);
+    try {
+      return new YoutubeRequest("videos", nameArgs).getResultAsync(YoutubeResponses::readVideoInfo);
+    } catch (IOException e) {
+      return CompletableFuture.failedFuture(e);
+    }
+  }
+
+  /**
+   * Starts looking up the information of many videos ahead of their analyses, with
+   * VIDEO_INFO_BATCH_SIZE ids per call instead of one call per video. The analyses wait for the
+   * batch their video is in. A video the batch fails for is looked up on its own.
+   *
+   * @param videoIds the ids of the videos. Videos that were looked up recently are skipped.
+   */
+  public static void prefetchVideoInfo(Collection<String> videoIds) {
+    ArrayList<String> missing = new ArrayList<>();
+    for (String videoId : videoIds) {
+      if (VIDEO_INFO_CACHE.getIfPresent(videoId) == null) {
+        missing.add(videoId);
+      }
+    }
+
+    for (int start = 0; start < missing.size(); start += VIDEO_INFO_BATCH_SIZE) {
+      List<String> batch =
+          missing.subList(start, Math.min(start + VIDEO_INFO_BATCH_SIZE, missing.size()));
+      CompletableFuture<HashMap<String, VideoInfo>> lookup =
+          requestVideoInfos(batch)
+              .whenComplete(
+                  (videoInfos, error) -> {
+                    if (error != null) {
+                      LOGGER.log(Level.WARNING, error, () -> "Could not look up videos " + batch);
+                    }
+                  });
+
+      for (String videoId : batch) {
+        VIDEO_INFO_CACHE
+            .asMap()
+            .putIfAbsent(
+                videoId,
+                lookup
+                    .handle(
+                        (videoInfos, error) -> videoInfos == null ? null : videoInfos.get(videoId))
+                    .thenCompose(
+                        videoInfo ->
+                            videoInfo != null
+                                ? CompletableFuture.completedFuture(videoInfo)
+                                : requestVideoInfo(videoId)));
+      }
+    }
+  }
+
+  /**
+   * Looks up the information of up to VIDEO_INFO_BATCH_SIZE videos in one call.
+   *
+   * @param videoIds the ids of the videos
+   * @return a future of the information by video id. Ids that aren't videos are left out.
+   */
+  private static CompletableFuture<HashMap<String, VideoInfo>> requestVideoInfos(
+      List<String> videoIds) {
+    HashMap<String, String> videoArgs = new HashMap<>();
+    videoArgs.put("part", "snippet");
+    videoArgs.put("id", String.join(",", videoIds));
+    videoArgs.put("maxResults", String.valueOf(VIDEO_INFO_BATCH_SIZE));
+    videoArgs.put("fields", "items(id,snippet(title,channelTitle,publishedAt))");
+    try {
+      return new YoutubeRequest("videos", videoArgs)
+          .getResultAsync(YoutubeResponses::readVideoInfos);
+    } catch (IOException e) {
+      return CompletableFuture.failedFuture(e);
+    }
+  }
+
+  /**
+   * Analyzes the given string with the Natural Language API, unless the same text was analyzed
+   * before.
+   *
+   * @param text The text that will be analyzed by the Natural Language API.
+   * @return A future of a NLPResult object with the results
+   */
+  private CompletableFuture<NLPResult> analyzeWithNLP(String text) {
+    return SENTIMENT_CACHE.get(text, () -> requestSentiment(text));
+  }
+
+  private CompletableFuture<NLPResult> requestSentiment(String text) {
+    return new SentimentRequest(text)
+        .getResponseAsync()
+        .thenApply(
+            response -> {
+              // Extracting the sentiment
+              JsonElement jElement = JsonParser.parseString(response);
+              JsonObject jObject = jElement.getAsJsonObject();
+              JsonObject sentimentObject = jObject.getAsJsonObject("documentSentiment");
+
+              return new NLPResult(
+                  Double.valueOf(sentimentObject.get("magnitude").toString()),
+                  Double.valueOf(sentimentObject.get("score").toString()));
+            });
+  }
+
+  /**
+   * Analyzes comments with the Natural Language API as they are fetched. At most
+   * NLP_CONCURRENCY_PER_REQUEST calls are in flight at once for a single request, so one video
+   * can't take over the shared HTTP client, and adding comments blocks while the API catches up.
+   */
+  private class SentimentFeed {
+    private final Semaphore permits = new Semaphore(NLP_CONCURRENCY_PER_REQUEST);
+    private final ArrayList<CompletableFuture<NLPResult>> futures = new ArrayList<>();
+
+    // Likes, and sentiment multiplied by likes, of the comments analyzed so far
+    private double totalLikes;
+    private double likedMagnitude;
+    private double likedScore;
+
+    /**
+     * Starts analyzing the next comments.
+     *
+     * @param comments the comments that will be analyzed
+     */
+    void add(List<Comment> comments) throws IOException {
+      try {
+        for (Comment comment : comments) {
+          permits.acquire();
+          futures.add(
+              analyzeWithNLP(comment.text)
+                  .whenComplete(
+                      (result, error) -> {
+                        permits.release();
+                        if (result != null) {
+                          listener.onCommentScored(comment, result, addToWeighted(comment, result));
+                        }
+                      }));
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while analyzing comments", e);
+      }
+    }
+
+    /** @return the weighted sentiment of the comments analyzed so far, including this one */
+    private synchronized NLPResult addToWeighted(Comment comment, NLPResult sentiment) {
+      totalLikes += comment.likes;
+      likedMagnitude += comment.likes * sentiment.magnitude;
+      likedScore += comment.likes * sentiment.score;
+      if (totalLikes == 0) {
+        // Same as createWeightedSentiment() when no comment has likes
+        return new NLPResult(0, 0);
+      }
+      return new NLPResult(likedMagnitude / totalLikes, likedScore / totalLikes);
+    }
+
+    /**
+     * Waits for every comment added so far.
+     *
+     * @param comments the comments that were added, in the same order
+     * @return A map of each comment's NLPResult to its number of likes
+     */
+    HashMap<NLPResult, Integer> await(List<Comment> comments) throws IOException {
+      HashMap<NLPResult, Integer> unweightedNLPMap = new HashMap<>();
+      for (int i = 0; i < futures.size(); i++) {
+        unweightedNLPMap.put(SharedHttpClient.await(futures.get(i)), comments.get(i).likes);
+      }
+      return unweightedNLPMap;
+    }
+  }
+
+  /**
+   * Takes the given map of sentiments and creates a common weighted sentiment according to the
+   * number of likes each comment receives out of the sum of the likes of the comments
+   *
+   * @param unweightedNLPMap the unweighted map of <like, nlp> pairs
+   * @return A weighted NLPResult object
+   */
+  private NLPResult createWeightedSentiment(HashMap<NLPResult, Integer> unweightedNLPMap) {
+    double totalLikes = 0;
+
+    for (Map.Entry<NLPResult, Integer> likesAndNLPResult : unweightedNLPMap.entrySet()) {
+      totalLikes += (double) likesAndNLPResult.getValue();
+    }
+
+    if (totalLikes == 0) {
+      // If there are no likes on any comment, we they all need
+      // to be weighted equally. There's not enough data to confidently
+      // determine a communities reaction.
+      // This will rarely hit.
+      return new NLPResult(0, 0);
+    }
+
+    double weightedMagnitude = 0;
+    double weightedScore = 0;
+
+    for (Map.Entry<NLPResult, Integer> likesAndNLPResult : unweightedNLPMap.entrySet()) {
+      double eachCommentLikeCount = likesAndNLPResult.getValue();
+      // If a comment has no likes, this implementation would
+      // not count it's magnitude at all. This seems like a potential
+      // problem, however, if there are no likes on the comments,
+      // there hasn't been enough community interaction to determine
+      // a sentiment, so the tool would return "MIXED".
+      // This situation would rarely be the case, since the relevance
+      // feature selects the most releveant, popular comments anyway.
+      weightedMagnitude +=
+          (eachCommentLikeCount / totalLikes) * likesAndNLPResult.getKey().magnitude;
+      weightedScore += (eachCommentLikeCount / totalLikes) * likesAndNLPResult.getKey().score;
+    }
+
+    return new NLPResult(weightedMagnitude, weightedScore);
+  }
+
+  /**
+   * Analyzes the given string with the Perspective API, unless the same text was analyzed for the
+   * same attributes before.
+   *
+   * @param text The text that will be analyzed by the Perspective API.
+   * @return A hashmap with the results
+   */
+  private HashMap<String, String> analyzeWithPerspective(String text) throws IOException {
+
+    ArrayList<String> attributes =
+        new ArrayList<>(
+            Arrays.asList(
+                "TOXICITY",
+                "IDENTITY_ATTACK",
+                "INSULT",
+                "PROFANITY",
+                "THREAT",
+                "SEXUALLY_EXPLICIT",
+                "FLIRTATION"));
+
+    // The scores depend on which attributes were asked for as well as on the text. The text is
+    // hashed as is, the separator can't occur in an attribute name.
+    ArrayList<String> sortedAttributes = new ArrayList<>(attributes);
+    Collections.sort(sortedAttributes);
+    String content = String.join(",", sortedAttributes) + '\u0000' + text;
+
+    return SharedHttpClient.await(
+        PERSPECTIVE_CACHE.get(content, () -> requestPerspective(text, attributes)));
+  }
+
+  private CompletableFuture<HashMap<String, String>> requestPerspective(
+      String text, ArrayList<String> attributes) {
+    // Calling the API
+    PerspectiveRequest perspectiveRequest = new PerspectiveRequest(text, attributes);
+    return perspectiveRequest
+        .getResponseAsync()
+        .thenApply(
+            response -> {
+              // Extracting the results
+              JsonElement jElement = JsonParser.parseString(response);
+              JsonObject jObject = jElement.getAsJsonObject();
+              JsonObject attributeObject = jObject.getAsJsonObject("attributeScores");
+
+              HashMap<String, String> perspectiveResults = new HashMap<String, String>();
+              for (String el : attributes) {
+                perspectiveResults.put(
+                    el,
+                    attributeObject
+                        .getAsJsonObject(el)
+                        .getAsJsonObject("summaryScore")
+                        .get("value")
+                        .toString());
+              }
+
+              return perspectiveResults;
+            });
+  }
+
+  /**
+   * Filters the text of each comment, so that it's readable and doesn't break the APIs.
+   *
+   * @param comments the comments as read from Youtube, whose text is filtered in place
+   * @return the comments that have any text left
+   */
+  ArrayList<Comment> filterComments(ArrayList<Comment> comments) {
+    ArrayList<Comment> filtered = new ArrayList<>(comments.size());
+    for (Comment comment : comments) {
+      String text = normalizer.normalize(comment.text);
+      // Comments of only symbols are left empty, and there is nothing in them to analyze
+      if (text != null) {
+        comment.text = text;
+        filtered.add(comment);
+      }
+    }
+    return filtered;
+  }
+
+  /**
+   * Condenses array of comments into one large string, separating unpunctuated sentences with a
+   * period. Comments that would take the string over PERSPECTIVE_MAX_BYTES are left out.
+   *
+   * @param comments The filtered comments to be condensed.
+   * @return A properly formatted String
+   */
+  String convertToString(ArrayList<Comment> comments) {
+    StringBuilder res = new StringBuilder();
+    int bytes = 0;
+
+    for (Comment comment : comments) {
+      if (comment.text.isEmpty()) {
+        continue;
+      }
+      // Make sure each comment is treated as its own sentence
+      int start = res.length();
+      res.append(comment.text).append(CommentNormalizer.sentenceEnding(comment.text));
+
+      bytes += utf8Length(res, start);
+      if (bytes > PERSPECTIVE_MAX_BYTES) {
+        res.setLength(start);
+        break;
+      }
+    }
+
+    return res.toString();
+  }
+
+  /** @return how many bytes the text from start on takes up in UTF-8, without encoding it */
+  private static int utf8Length(CharSequence text, int start) {
+    int length = 0;
+    for (int i = start; i < text.length(); i++) {
+      char c = text.charAt(i);
+      if (c < 0x80) {
+        length += 1;
+      } else if (c < 0x800) {
+        length += 2;
+      } else if (Character.isHighSurrogate(c)) {
+        // The pair is one four byte code point
+        length += 4;
+        i++;
+      } else {
+        length += 3;
+      }
+    }
+    return length;
+  }
+
+  /** @return whether the input has the shape of a youtube id */
+  public static boolean looksLikeVideoId(String userInput) {
+    return userInput.length() == 11 && !thereIsWhiteSpace(userInput);
+  }
+
+  /**
+   * Generic function to check for whitespace in a string, the same characters \s matches in a regex
+   *
+   * @param string The string to be searched
+   * @return whether or not there's any whitespace
+   */
+  private static boolean thereIsWhiteSpace(String string) {
+    for (int i = 0; i < string.length(); i++) {
+      char c = string.charAt(i);
+      if (c == ' ' || c == '\t' || c == '\n' || c == '\u000b' || c == '\f' || c == '\r') {
+        return true;
+      }
+    }
+    return false;
+  }
+}
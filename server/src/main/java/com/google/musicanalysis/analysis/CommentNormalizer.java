@@ -0,0 +1,88 @@
+package com.google.musicanalysis.analysis;
+
+/**
+ * Cleans up comment texts before they are sent to Natural Language and Perspective, in one pass
+ * over each text instead of a regex replace per rule.
+ *
+ * <p>It strips what the emoji regex used to:
+ *
+ * <ul>
+ *   <li>the copyright and registered signs
+ *   <li>U+2000 to U+3300: punctuation, symbols, arrows, dingbats and the like
+ *   <li>a high surrogate U+D83C to U+D83E that isn't part of a pair, along with the character after
+ *       it if that is in U+D000 to U+DFFF
+ * </ul>
+ *
+ * It also strips double quotes. Regexes match whole code points, so the surrogate rule never
+ * matched actual emoji, and neither does this. They are left in to keep the output the same.
+ *
+ * <p>Keeps a buffer between texts, so it isn't thread safe. Each analysis uses its own.
+ */
+final class CommentNormalizer {
+  private final StringBuilder buffer = new StringBuilder();
+
+  /**
+   * @param text the text of a comment
+   * @return the text with the characters above stripped, or null if nothing but whitespace is left
+   *     of it
+   */
+  String normalize(String text) {
+    int length = text.length();
+    boolean hasText = false;
+    int start = 0;
+    buffer.setLength(0);
+
+    int i = 0;
+    while (i < length) {
+      int stripped = strippedLength(text, i);
+      if (stripped > 0) {
+        buffer.append(text, start, i);
+        i += stripped;
+        start = i;
+      } else {
+        // Supplementary code points are never whitespace, so checking each char is enough
+        hasText = hasText || !Character.isWhitespace(text.charAt(i));
+        i++;
+      }
+    }
+
+    if (!hasText) {
+      return null;
+    }
+    // Most comments have nothing stripped, and are kept as they are
+    if (start == 0) {
+      return text;
+    }
+    return buffer.append(text, start, length).toString();
+  }
+
+  /** @return how many chars to strip at the index, 0 to keep the char there */
+  private static int strippedLength(String text, int index) {
+    char c = text.charAt(index);
+    if (c == '"' || c == '\u00a9' || c == '\u00ae' || (c >= '\u2000' && c <= '\u3300')) {
+      return 1;
+    }
+    if (c >= '\ud83c' && c <= '\ud83e' && index + 1 < text.length()) {
+      char next = text.charAt(index + 1);
+      // U+D000 to U+DFFF, except what would pair up with c or with the char after next
+      boolean pairsUp =
+          Character.isLowSurrogate(next)
+              || (Character.isHighSurrogate(next)
+                  && index + 2 < text.length()
+                  && Character.isLowSurrogate(text.charAt(index + 2)));
+      if (next >= '\ud000' && next <= '\udfff' && !pairsUp) {
+        return 2;
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * @param text a normalized comment, not empty
+   * @return what to put after the comment so that it reads as its own sentence
+   */
+  static String sentenceEnding(String text) {
+    char last = text.charAt(text.length() - 1);
+    return last == '.' || last == '!' || last == '?' ? " " : ". ";
+  }
+}
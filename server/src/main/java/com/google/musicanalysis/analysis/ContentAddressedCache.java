@@ -0,0 +1,106 @@
+package com.google.musicanalysis.analysis;
+
+import com.github.benmanes.caffeine.cache.AsyncCache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import com.google.musicanalysis.util.Metrics;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.Normalizer;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
+import java.util.regex.Pattern;
+
+/**
+ * A bounded cache of analysis results, keyed by a hash of the text that was analyzed rather than by
+ * the video it came from. The same text shows up in comments on many videos, and in every
+ * re-analysis of a video, so it only has to be sent to the API once.
+ *
+ * <p>Text can be normalized before it is hashed, so that differences in Unicode composition,
+ * leading and trailing whitespace, and runs of whitespace don't count. Results that depend on the
+ * exact text are keyed by its raw UTF-8 bytes instead. Concurrent lookups of the same text share
+ * one computation, and failed computations aren't cached.
+ *
+ * @param <V> the type of result
+ */
+public class ContentAddressedCache<V> {
+  private static final Pattern WHITESPACE_RUN = Pattern.compile("\\s+");
+
+  private final AsyncCache<String, V> cache;
+  private final boolean normalizeText;
+  private final UnaryOperator<V> copier;
+
+  /**
+   * @param name the name the cache's hit rates are reported under in the metrics
+   * @param maximumSize the most results to keep
+   * @param timeToLive how long a result is kept after it was computed
+   * @param normalizeText whether texts that only differ in composition or whitespace share a result
+   * @param copier copies a result, so that callers never share a mutable instance
+   */
+  public ContentAddressedCache(
+      String name,
+      long maximumSize,
+      Duration timeToLive,
+      boolean normalizeText,
+      UnaryOperator<V> copier) {
+    this.cache =
+        Caffeine.newBuilder()
+            .maximumSize(maximumSize)
+            .expireAfterWrite(timeToLive)
+            .recordStats()
+            .buildAsync();
+    this.normalizeText = normalizeText;
+    this.copier = copier;
+    Metrics.register(name, this::getStats);
+  }
+
+  /**
+   * Returns the cached result for a text, computing it if there isn't one.
+   *
+   * @param content the text that is analyzed, along with anything else the result depends on
+   * @param compute computes the result if it isn't cached
+   * @return a copy of the result
+   */
+  public CompletableFuture<V> get(String content, Supplier<CompletableFuture<V>> compute) {
+    return cache
+        .get(keyOf(content, normalizeText), (key, executor) -> compute.get())
+        .thenApply(copier);
+  }
+
+  /** @return the key a text is stored under */
+  static String keyOf(String content, boolean normalizeText) {
+    String hashed =
+        normalizeText
+            ? WHITESPACE_RUN
+                .matcher(Normalizer.normalize(content, Normalizer.Form.NFC).strip())
+                .replaceAll(" ")
+            : content;
+    try {
+      byte[] hash =
+          MessageDigest.getInstance("SHA-256").digest(hashed.getBytes(StandardCharsets.UTF_8));
+      return Base64.getEncoder().withoutPadding().encodeToString(hash);
+    } catch (NoSuchAlgorithmException e) {
+      // Every JVM is required to support SHA-256
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /** @return the hit rate and size of the cache */
+  public Map<String, Object> getStats() {
+    CacheStats stats = cache.synchronous().stats();
+    Map<String, Object> result = new LinkedHashMap<>();
+    result.put("size", cache.synchronous().estimatedSize());
+    result.put("hitRate", stats.hitRate());
+    result.put("hits", stats.hitCount());
+    result.put("misses", stats.missCount());
+    result.put("failures", stats.loadFailureCount());
+    result.put("evictions", stats.evictionCount());
+    return result;
+  }
+}
@@ -0,0 +1,65 @@
+package com.google.musicanalysis.analysis;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/** Records how long each stage of an analysis took, in milliseconds. Safe to share across threads */
+public class StageTimings {
+  private final Map<String, Long> durations = new ConcurrentSkipListMap<>();
+
+  /**
+   * Runs the given stage and records how long it took, even if it fails.
+   *
+   * @param stage the name of the stage
+   * @param body the work done by the stage
+   * @return the value returned by the stage
+   */
+  public <T> T time(String stage, Supplier<T> body) {
+    long start = System.nanoTime();
+    try {
+      return body.get();
+    } finally {
+      record(stage, System.nanoTime() - start);
+    }
+  }
+
+  /**
+   * Records the duration of a stage
+   *
+   * @param stage the name of the stage
+   * @param nanos how long the stage took in nanoseconds
+   */
+  public void record(String stage, long nanos) {
+    durations.put(stage, TimeUnit.NANOSECONDS.toMillis(nanos));
+  }
+
+  /** @return an unmodifiable view of stage name to duration in milliseconds */
+  public Map<String, Long> getDurations() {
+    return Collections.unmodifiableMap(durations);
+  }
+
+  /**
+   * Formats the timings as a Server-Timing header value, so that the breakdown shows up in the
+   * browser's network panel, e.g. {@code comments;dur=120, perspective;dur=340}
+   *
+   * @return the header value
+   */
+  public String toServerTimingHeader() {
+    StringBuilder header = new StringBuilder();
+    for (Map.Entry<String, Long> entry : durations.entrySet()) {
+      if (header.length() > 0) {
+        header.append(", ");
+      }
+      header.append(entry.getKey()).append(";dur=").append(entry.getValue());
+    }
+    return header.toString();
+  }
+
+  @Override
+  public String toString() {
+    return durations.toString();
+  }
+}
@@ -0,0 +1,159 @@
+package com.google.musicanalysis.api;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Stops calling an upstream API for a while once most recent calls to it failed or were slow, so
+ * that requests fail right away instead of each waiting for a timeout.
+ *
+ * <p>The breaker opens once at least half of the last WINDOW_SIZE calls failed or took longer
+ * than the slow call threshold. After UPSTREAM_BREAKER_OPEN_SECONDS it lets a single trial call
+ * through, and closes again if that call went well.
+ *
+ * <p>Every change of state, and every trial call, starts a new generation. A call is tagged with
+ * the generation it was let through in, and its outcome only counts if the breaker is still in
+ * that generation, so a call that started before the breaker opened can't decide the trial.
+ */
+final class CircuitBreaker {
+  private static final int WINDOW_SIZE = 20;
+  // Fewer calls than this say too little about the API
+  private static final int MIN_CALLS = 10;
+  private static final double FAILURE_RATIO = 0.5;
+  private static final long OPEN_NANOS =
+      TimeUnit.SECONDS.toNanos(
+          Long.parseLong(System.getenv().getOrDefault("UPSTREAM_BREAKER_OPEN_SECONDS", "30")));
+
+  private enum State {
+    CLOSED,
+    OPEN,
+    HALF_OPEN
+  }
+
+  // Returned by allowRequest() when a call may not be made
+  static final long NOT_ALLOWED = -1;
+
+  private final long slowCallNanos;
+  private final LongSupplier clock;
+
+  // Guarded by this
+  private State state = State.CLOSED;
+  private long generation;
+  // Whether each of the last calls failed or was slow, as a ring
+  private final boolean[] window = new boolean[WINDOW_SIZE];
+  private int calls;
+  private int badCalls;
+  private long openedAt;
+  private long trialStartedAt;
+  private boolean trialInFlight;
+  private long opened;
+  private long shortCircuited;
+
+  /**
+   * @param slowCallNanos calls that take longer than this count against the API, like failures.
+   *     Also how long a trial call may take before another one is let through.
+   */
+  CircuitBreaker(long slowCallNanos) {
+    this(slowCallNanos, System::nanoTime);
+  }
+
+  /** @param clock the time in nanos, which tests can move forward themselves */
+  CircuitBreaker(long slowCallNanos, LongSupplier clock) {
+    this.slowCallNanos = slowCallNanos;
+    this.clock = clock;
+  }
+
+  /**
+   * @return the generation to record the call's outcome with if a call may be made now, or
+   *     NOT_ALLOWED. If allowed, the outcome of the call must be recorded.
+   */
+  synchronized long allowRequest() {
+    long now = clock.getAsLong();
+    if (state == State.OPEN && now - openedAt >= OPEN_NANOS) {
+      state = State.HALF_OPEN;
+      trialInFlight = false;
+    }
+    if (state == State.CLOSED) {
+      return generation;
+    }
+    // A trial whose outcome never arrived doesn't hold the breaker forever
+    if (state == State.HALF_OPEN && (!trialInFlight || now - trialStartedAt > slowCallNanos)) {
+      trialInFlight = true;
+      trialStartedAt = now;
+      // A trial that is given up on can't decide anything when it finally finishes
+      return ++generation;
+    }
+    shortCircuited++;
+    return NOT_ALLOWED;
+  }
+
+  /** @return whether calls are going through as usual, not just trial calls */
+  synchronized boolean isClosed() {
+    return state == State.CLOSED;
+  }
+
+  /**
+   * Records how a call went.
+   *
+   * @param callGeneration the generation {@link #allowRequest} let the call through in
+   * @param failed whether the call failed, timed out or got a server error
+   * @param latencyNanos how long the call took
+   */
+  synchronized void record(long callGeneration, boolean failed, long latencyNanos) {
+    if (callGeneration != generation) {
+      // The breaker changed state since the call started, so the call says nothing about it now
+      return;
+    }
+    boolean bad = failed || latencyNanos > slowCallNanos;
+    switch (state) {
+      case HALF_OPEN:
+        if (bad) {
+          open();
+        } else {
+          state = State.CLOSED;
+          generation++;
+          calls = 0;
+          badCalls = 0;
+        }
+        break;
+      case CLOSED:
+        int slot = calls % WINDOW_SIZE;
+        if (calls >= WINDOW_SIZE && window[slot]) {
+          badCalls--;
+        }
+        window[slot] = bad;
+        calls++;
+        if (bad) {
+          badCalls++;
+        }
+        int counted = Math.min(calls, WINDOW_SIZE);
+        if (counted >= MIN_CALLS && badCalls >= counted * FAILURE_RATIO) {
+          open();
+        }
+        break;
+      default:
+        // Can't happen, no call is let through while the breaker is open
+        break;
+    }
+  }
+
+  private void open() {
+    state = State.OPEN;
+    generation++;
+    openedAt = clock.getAsLong();
+    trialInFlight = false;
+    opened++;
+  }
+
+  /** @return the state of the breaker, and how often it opened and turned calls away */
+  synchronized Map<String, Object> getStats() {
+    Map<String, Object> stats = new LinkedHashMap<>();
+    stats.put("state", state.name().toLowerCase(Locale.ROOT));
+    stats.put("opened", opened);
+    stats.put("shortCircuited", shortCircuited);
+    return stats;
+  }
+}
@@ -0,0 +1,266 @@
+package com.google.musicanalysis.api;
+
+import com.google.musicanalysis.util.NamedThreadFactory;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.net.http.HttpTimeoutException;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Holds the one HTTP client that every upstream call goes through. The client keeps connections
+ * alive and speaks HTTP/2 where the server supports it, so calls to the same host share a
+ * connection instead of paying for a new TLS handshake each time.
+ *
+ * <p>Calls to the YouTube, Natural Language and Perspective APIs made with sendAsync() go through
+ * the limiter, timeout, circuit breaker and hedging of their API, see {@link Upstream}.
+ */
+public final class SharedHttpClient {
+  private static final Logger LOGGER = Logger.getLogger(SharedHttpClient.class.getName());
+
+  /** Hosts that are called while analyzing a video, connected to ahead of time by prewarm() */
+  private static final List<String> PREWARM_HOSTS =
+      Arrays.asList(
+          "https://www.googleapis.com/",
+          "https://language.googleapis.com/",
+          "https://commentanalyzer.googleapis.com/");
+
+  private static final Duration CONNECT_TIMEOUT =
+      Duration.ofMillis(
+          Long.parseLong(System.getenv().getOrDefault("UPSTREAM_CONNECT_TIMEOUT_MS", "3000")));
+
+  // For hosts that aren't one of the upstream APIs
+  private static final Duration DEFAULT_TIMEOUT =
+      Duration.ofMillis(
+          Long.parseLong(System.getenv().getOrDefault("UPSTREAM_DEFAULT_TIMEOUT_MS", "10000")));
+
+  // Also parses streamed response bodies, which blocks on the network
+  private static final ExecutorService EXECUTOR =
+      Executors.newCachedThreadPool(new NamedThreadFactory("http-client"));
+
+  private static final HttpClient CLIENT =
+      HttpClient.newBuilder()
+          .version(HttpClient.Version.HTTP_2)
+          .connectTimeout(CONNECT_TIMEOUT)
+          .followRedirects(HttpClient.Redirect.NORMAL)
+          .executor(EXECUTOR)
+          .build();
+
+  private SharedHttpClient() {}
+
+  /** Reads what it needs from a response body as it arrives */
+  @FunctionalInterface
+  public interface BodyParser<T> {
+    T parse(InputStream body) throws IOException;
+  }
+
+  /** @return the shared client */
+  public static HttpClient get() {
+    return CLIENT;
+  }
+
+  /**
+   * @param uri where a request goes
+   * @return the timeout to set on the request, which is the timeout of its upstream API. Unlike the
+   *     timeout applied by sendAsync(), it aborts the exchange itself.
+   */
+  public static Duration timeoutFor(URI uri) {
+    Upstream upstream = Upstream.forUri(uri);
+    return upstream == null ? DEFAULT_TIMEOUT : upstream.timeout();
+  }
+
+  /**
+   * Sends the request and returns the body of the response.
+   *
+   * @param request the request to send
+   * @param description what the request is for, used in error messages
+   * @return a future of the response body. It completes exceptionally with a CompletionException
+   *     wrapping an IOException if the request fails or the response status is not 2xx, or an
+   *     UpstreamUnavailableException if the request wasn't sent.
+   */
+  public static CompletableFuture<String> sendAsync(HttpRequest request, String description) {
+    return guarded(request, () -> CLIENT.sendAsync(request, BodyHandlers.ofString()))
+        .handle(
+            (response, error) -> {
+              if (error != null) {
+                throw new CompletionException(describe(description, error));
+              }
+              if (response.statusCode() / 100 != 2) {
+                throw new CompletionException(
+                    new IOException(
+                        String.format(
+                            "issue with %s: status %d", description, response.statusCode())));
+              }
+              return response.body();
+            });
+  }
+
+  /**
+   * Sends the request and parses the response body while it is streamed in, without holding the
+   * whole body in memory.
+   *
+   * @param request the request to send
+   * @param description what the request is for, used in error messages
+   * @param parser reads the body. It is closed afterwards, even if the parser stops early.
+   * @return a future of what the parser returned. It completes exceptionally with a
+   *     CompletionException wrapping an IOException if the request or the parser fails, or the
+   *     response status is not 2xx. That is an HttpTimeoutException if the body took longer than
+   *     the timeout of the request's API to arrive.
+   */
+  public static <T> CompletableFuture<T> sendAsync(
+      HttpRequest request, String description, BodyParser<T> parser) {
+    return guarded(request, () -> CLIENT.sendAsync(request, BodyHandlers.ofInputStream()))
+        .handle(
+            (response, error) -> {
+              if (error != null) {
+                throw new CompletionException(describe(description, error));
+              }
+              return response;
+            })
+        .thenCompose(response -> parseAsync(response, description, parser, request.uri()));
+  }
+
+  /**
+   * Parses a streamed body on the executor. The timeout of the request only covers the response
+   * headers, so the body gets a deadline of its own. Once it passes, the body is closed, which
+   * makes a parser that is stuck waiting for more of it fail.
+   */
+  private static <T> CompletableFuture<T> parseAsync(
+      HttpResponse<InputStream> response, String description, BodyParser<T> parser, URI uri) {
+    InputStream body = response.body();
+    Duration timeout = timeoutFor(uri);
+    return CompletableFuture.supplyAsync(
+            () -> {
+              try (body) {
+                if (response.statusCode() / 100 != 2) {
+                  throw new IOException(
+                      String.format(
+                          "issue with %s: status %d", description, response.statusCode()));
+                }
+                return parser.parse(body);
+              } catch (IOException | RuntimeException e) {
+                throw new CompletionException(
+                    e instanceof IOException
+                        ? e
+                        : new IOException("issue with " + description + ": bad response", e));
+              }
+            },
+            EXECUTOR)
+        .orTimeout(timeout.toMillis(), TimeUnit.MILLISECONDS)
+        .handle(
+            (value, error) -> {
+              if (unwrap(error) instanceof TimeoutException) {
+                closeQuietly(body);
+                throw new CompletionException(
+                    new HttpTimeoutException(
+                        "issue with " + description + ": body took longer than " + timeout));
+              }
+              if (error != null) {
+                throw error instanceof CompletionException
+                    ? (CompletionException) error
+                    : new CompletionException(error);
+              }
+              return value;
+            });
+  }
+
+  /**
+   * Sends the request, waits for it and returns the body of the response.
+   *
+   * @param request the request to send
+   * @param description what the request is for, used in error messages
+   * @return the response body
+   * @throws IOException if the request fails or the response status is not 2xx
+   */
+  public static String send(HttpRequest request, String description) throws IOException {
+    return await(sendAsync(request, description));
+  }
+
+  /**
+   * Waits for a future returned by one of the request classes.
+   *
+   * @param future the future to wait for
+   * @return the value of the future
+   * @throws IOException if the future failed with an IOException
+   */
+  public static <T> T await(CompletableFuture<T> future) throws IOException {
+    try {
+      return future.join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Opens connections to the Google API hosts in the background, so the first analysis after
+   * startup doesn't have to wait for the TLS handshakes.
+   */
+  public static void prewarm() {
+    for (String host : PREWARM_HOSTS) {
+      HttpRequest request =
+          HttpRequest.newBuilder(URI.create(host))
+              .method("HEAD", HttpRequest.BodyPublishers.noBody())
+              .build();
+      CLIENT
+          .sendAsync(request, BodyHandlers.discarding())
+          .whenComplete(
+              (response, error) -> {
+                if (error != null) {
+                  LOGGER.log(Level.WARNING, error, () -> "Could not prewarm connection to " + host);
+                }
+              });
+    }
+  }
+
+  /**
+   * Sends the request through the guards of its upstream API, see {@link Upstream}. Requests to
+   * other hosts are sent as they are.
+   */
+  private static <T> CompletableFuture<HttpResponse<T>> guarded(
+      HttpRequest request, Supplier<CompletableFuture<HttpResponse<T>>> send) {
+    Upstream upstream = Upstream.forRequest(request);
+    return upstream == null ? send.get() : upstream.call(request, send);
+  }
+
+  /** Keeps the type of errors callers may want to handle, and adds what the request was for */
+  private static IOException describe(String description, Throwable error) {
+    Throwable cause = unwrap(error);
+    if (cause instanceof UpstreamUnavailableException) {
+      return (UpstreamUnavailableException) cause;
+    }
+    return new IOException("issue with " + description, cause);
+  }
+
+  private static void closeQuietly(InputStream body) {
+    try {
+      body.close();
+    } catch (IOException e) {
+      LOGGER.log(Level.FINE, e, () -> "Could not close a response body");
+    }
+  }
+
+  private static Throwable unwrap(Throwable error) {
+    if (error instanceof CompletionException && error.getCause() != null) {
+      return error.getCause();
+    }
+    return error;
+  }
+}
@@ -0,0 +1,344 @@
+package com.google.musicanalysis.api;
+
+import com.google.musicanalysis.util.Metrics;
+import com.google.musicanalysis.util.NamedThreadFactory;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+import java.util.function.Supplier;
+
+/**
+ * One of the upstream APIs an analysis calls, and everything that guards the calls to it:
+ *
+ * <ul>
+ *   <li>a limiter that keeps the calls within this instance's share of the API's quota, see {@link
+ *       UpstreamLimiter}. Quotas are per project, so they are split over UPSTREAM_INSTANCES.
+ *   <li>a timeout on every call
+ *   <li>a circuit breaker that turns calls away while the API is failing, see {@link
+ *       CircuitBreaker}
+ *   <li>for calls that are safe to repeat and cost a single unit of quota, a second copy of the
+ *       call once the first has taken longer than 95% of recent calls. Whichever answers first is
+ *       used.
+ * </ul>
+ */
+final class Upstream {
+  // Hedging waits until the latency percentile is based on this many calls
+  private static final int MIN_LATENCY_SAMPLES = 20;
+  private static final int LATENCY_SAMPLES = 128;
+  private static final double HEDGE_PERCENTILE = 0.95;
+
+  // YouTube's quota is counted in units per day, and a search costs 100 of them
+  private static final int YOUTUBE_SEARCH_COST = 100;
+  // Quotas are per project, so each instance of the server only gets its share of them
+  private static final int INSTANCES =
+      Integer.parseInt(System.getenv().getOrDefault("UPSTREAM_INSTANCES", "1"));
+
+  private static final ScheduledThreadPoolExecutor TIMER =
+      new ScheduledThreadPoolExecutor(1, new NamedThreadFactory("upstream-timer"));
+
+  static {
+    // Most timeouts are cancelled because the call finished in time
+    TIMER.setRemoveOnCancelPolicy(true);
+  }
+
+  // Every YouTube call is a GET, so repeating one is harmless. Searches still aren't hedged, see
+  // call().
+  private static final Upstream YOUTUBE =
+      new Upstream(
+          "youtube",
+          new UpstreamLimiter(
+              "youtube",
+              quotaPerSecond("UPSTREAM_YOUTUBE_QUOTA_PER_DAY", "10000", TimeUnit.DAYS),
+              burst("UPSTREAM_YOUTUBE_BURST", "1000", YOUTUBE_SEARCH_COST),
+              Integer.parseInt(
+                  System.getenv().getOrDefault("UPSTREAM_YOUTUBE_MAX_CONCURRENCY", "32"))),
+          Long.parseLong(System.getenv().getOrDefault("UPSTREAM_YOUTUBE_TIMEOUT_MS", "5000")),
+          true);
+  // Every analyzeSentiment call is billed, so a hedged one would be paid for twice
+  private static final Upstream NATURAL_LANGUAGE =
+      new Upstream(
+          "naturalLanguage",
+          new UpstreamLimiter(
+              "naturalLanguage",
+              quotaPerSecond("UPSTREAM_NLP_QUOTA_PER_MINUTE", "600", TimeUnit.MINUTES),
+              burst("UPSTREAM_NLP_BURST", "600", 1),
+              Integer.parseInt(
+                  System.getenv().getOrDefault("UPSTREAM_NLP_MAX_CONCURRENCY", "32"))),
+          Long.parseLong(System.getenv().getOrDefault("UPSTREAM_NLP_TIMEOUT_MS", "5000")),
+          false);
+  // Perspective may store the comments it is sent, and its quota is too small to spend twice
+  private static final Upstream PERSPECTIVE =
+      new Upstream(
+          "perspective",
+          new UpstreamLimiter(
+              "perspective",
+              quotaPerSecond("UPSTREAM_PERSPECTIVE_QUOTA_PER_MINUTE", "60", TimeUnit.MINUTES),
+              burst("UPSTREAM_PERSPECTIVE_BURST", "5", 1),
+              Integer.parseInt(
+                  System.getenv().getOrDefault("UPSTREAM_PERSPECTIVE_MAX_CONCURRENCY", "8"))),
+          Long.parseLong(
+              System.getenv().getOrDefault("UPSTREAM_PERSPECTIVE_TIMEOUT_MS", "10000")),
+          false);
+
+  private static final Map<String, Upstream> BY_HOST =
+      Map.of(
+          "www.googleapis.com", YOUTUBE,
+          "language.googleapis.com", NATURAL_LANGUAGE,
+          "commentanalyzer.googleapis.com", PERSPECTIVE);
+
+  private final String name;
+  private final UpstreamLimiter limiter;
+  private final CircuitBreaker breaker;
+  private final long timeoutNanos;
+  private final boolean hedge;
+
+  // Latencies of the last successful calls, as a ring. Guarded by itself.
+  private final long[] latencies = new long[LATENCY_SAMPLES];
+  private int latencyCount;
+
+  private final AtomicLong timeouts = new AtomicLong();
+  private final AtomicLong hedges = new AtomicLong();
+  private final AtomicLong hedgeWins = new AtomicLong();
+
+  private Upstream(String name, UpstreamLimiter limiter, long timeoutMillis, boolean hedge) {
+    this.name = name;
+    this.limiter = limiter;
+    this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    // Calls taking half the timeout are already far slower than usual
+    this.breaker = new CircuitBreaker(timeoutNanos / 2);
+    this.hedge = hedge;
+    Metrics.register("upstream." + name, this::getStats);
+  }
+
+  /** @return this instance's share of a project's quota, per second */
+  private static double quotaPerSecond(String variable, String defaultQuota, TimeUnit per) {
+    return perInstance(variable, defaultQuota) / per.toSeconds(1);
+  }
+
+  /**
+   * @return this instance's share of how much quota may be used at once, but never so little that
+   *     the costliest call can't be made
+   */
+  private static double burst(String variable, String defaultBurst, int maxCost) {
+    return Math.max(maxCost, perInstance(variable, defaultBurst));
+  }
+
+  /** @return this instance's share of an amount of quota that the whole project gets */
+  private static double perInstance(String variable, String defaultValue) {
+    return Double.parseDouble(System.getenv().getOrDefault(variable, defaultValue))
+        / Math.max(1, INSTANCES);
+  }
+
+  /**
+   * @param request a request to an upstream API
+   * @return the API the request goes to, or null if its calls aren't guarded
+   */
+  static Upstream forRequest(HttpRequest request) {
+    return forUri(request.uri());
+  }
+
+  /**
+   * @param uri where a request goes
+   * @return the API the request goes to, or null if its calls aren't guarded
+   */
+  static Upstream forUri(URI uri) {
+    return BY_HOST.get(uri.getHost());
+  }
+
+  /** @return how long a call to the API may take, for the response and again for its body */
+  Duration timeout() {
+    return Duration.ofNanos(timeoutNanos);
+  }
+
+  /** @return how much of the API's quota the request uses up */
+  private int costOf(HttpRequest request) {
+    if (this == YOUTUBE && request.uri().getPath().endsWith("/search")) {
+      return YOUTUBE_SEARCH_COST;
+    }
+    return 1;
+  }
+
+  /**
+   * Makes a call to the API.
+   *
+   * @param request the request of the call
+   * @param send sends the request, each time it is called
+   * @return a future of the response. It fails with an UpstreamUnavailableException if the call
+   *     wasn't made, or an HttpTimeoutException if it took longer than the API's timeout.
+   */
+  <T> CompletableFuture<HttpResponse<T>> call(
+      HttpRequest request, Supplier<CompletableFuture<HttpResponse<T>>> send) {
+    long generation = breaker.allowRequest();
+    if (generation == CircuitBreaker.NOT_ALLOWED) {
+      return CompletableFuture.failedFuture(
+          new UpstreamUnavailableException(name + " is failing, calls to it are paused"));
+    }
+    int cost = costOf(request);
+    String endpoint = request.uri().getPath();
+    CompletableFuture<HttpResponse<T>> primary =
+        limiter.acquire(cost, endpoint).thenCompose(permit -> attempt(permit, generation, send));
+
+    // A second copy of a costlier call, like a search, would spend its whole cost again
+    long hedgeDelay = hedge && cost == 1 ? hedgeDelayNanos() : -1;
+    if (hedgeDelay < 0) {
+      return primary;
+    }
+
+    // Completed by the first good response, or by the last of the calls if none was good
+    CompletableFuture<HttpResponse<T>> result = new CompletableFuture<>();
+    AtomicInteger pending = new AtomicInteger(1);
+    // Returns whether the response was the one used
+    BiFunction<HttpResponse<T>, Throwable, Boolean> onResponse =
+        (response, error) -> {
+          boolean good = response != null && !isServerTrouble(response.statusCode());
+          if (good || pending.decrementAndGet() == 0) {
+            return complete(result, response, error);
+          }
+          if (response != null) {
+            discard(response);
+          }
+          return false;
+        };
+    primary.whenComplete((response, error) -> onResponse.apply(response, error));
+
+    TIMER.schedule(
+        () -> {
+          if (primary.isDone() || !breaker.isClosed()) {
+            return;
+          }
+          // Only worth it if it can go out right away
+          UpstreamLimiter.Permit permit = limiter.tryAcquire(cost, endpoint);
+          if (permit == null) {
+            return;
+          }
+          hedges.incrementAndGet();
+          pending.incrementAndGet();
+          attempt(permit, generation, send)
+              .whenComplete(
+                  (response, error) -> {
+                    if (onResponse.apply(response, error) && response != null) {
+                      hedgeWins.incrementAndGet();
+                    }
+                  });
+        },
+        hedgeDelay,
+        TimeUnit.NANOSECONDS);
+    return result;
+  }
+
+  /**
+   * Sends the request once, with a timeout, and records how it went in the breaker generation the
+   * call was let through in
+   */
+  private <T> CompletableFuture<HttpResponse<T>> attempt(
+      UpstreamLimiter.Permit permit,
+      long generation,
+      Supplier<CompletableFuture<HttpResponse<T>>> send) {
+    long start = System.nanoTime();
+    CompletableFuture<HttpResponse<T>> result = new CompletableFuture<>();
+    send.get().whenComplete((response, error) -> complete(result, response, error));
+
+    // Cancelling the send doesn't stop the exchange, so the caller just stops waiting for it
+    ScheduledFuture<?> timeout =
+        TIMER.schedule(
+            () -> {
+              if (result.completeExceptionally(
+                  new HttpTimeoutException(name + " took longer than the timeout"))) {
+                timeouts.incrementAndGet();
+              }
+            },
+            timeoutNanos,
+            TimeUnit.NANOSECONDS);
+
+    return result.whenComplete(
+        (response, error) -> {
+          timeout.cancel(false);
+          long latency = System.nanoTime() - start;
+          int statusCode = response == null ? -1 : response.statusCode();
+          permit.release(statusCode);
+          boolean failed = statusCode < 0 || statusCode >= 500;
+          breaker.record(generation, failed, latency);
+          if (!failed) {
+            recordLatency(latency);
+          }
+        });
+  }
+
+  /**
+   * Completes the future, or discards the response if it was completed already.
+   *
+   * @return whether this completed the future
+   */
+  private static <T> boolean complete(
+      CompletableFuture<HttpResponse<T>> future, HttpResponse<T> response, Throwable error) {
+    if (error != null) {
+      return future.completeExceptionally(error);
+    }
+    if (future.complete(response)) {
+      return true;
+    }
+    discard(response);
+    return false;
+  }
+
+  /** Closes the body of a response nobody reads, so its connection isn't held up */
+  private static void discard(HttpResponse<?> response) {
+    if (response.body() instanceof Closeable) {
+      try {
+        ((Closeable) response.body()).close();
+      } catch (IOException e) {
+        // Nothing more to do with it
+      }
+    }
+  }
+
+  private static boolean isServerTrouble(int statusCode) {
+    return statusCode == 429 || statusCode >= 500;
+  }
+
+  private void recordLatency(long latency) {
+    synchronized (latencies) {
+      latencies[latencyCount % LATENCY_SAMPLES] = latency;
+      latencyCount++;
+    }
+  }
+
+  /** @return how long to wait before sending a second copy of a call, or -1 to not send one */
+  private long hedgeDelayNanos() {
+    long[] sorted;
+    synchronized (latencies) {
+      if (latencyCount < MIN_LATENCY_SAMPLES) {
+        return -1;
+      }
+      sorted = Arrays.copyOf(latencies, Math.min(latencyCount, LATENCY_SAMPLES));
+    }
+    Arrays.sort(sorted);
+    return sorted[(int) (HEDGE_PERCENTILE * (sorted.length - 1))];
+  }
+
+  /** @return the state of the limiter and the breaker, and how calls went */
+  private Map<String, Object> getStats() {
+    Map<String, Object> stats = new LinkedHashMap<>(limiter.getStats());
+    stats.putAll(breaker.getStats());
+    stats.put("timeouts", timeouts.get());
+    long hedgeDelay = hedgeDelayNanos();
+    stats.put("hedgeDelayMs", hedgeDelay < 0 ? 0 : hedgeDelay / 1e6);
+    stats.put("hedges", hedges.get());
+    stats.put("hedgeWins", hedgeWins.get());
+    return stats;
+  }
+}
@@ -0,0 +1,372 @@
+package com.google.musicanalysis.api;
+
+import com.google.musicanalysis.util.NamedThreadFactory;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.LongSupplier;
+
+/**
+ * Limits the calls made to one upstream API, so that a burst of requests queues up here instead of
+ * running into the API's quota and getting every call rejected.
+ *
+ * <p>Two limits apply to every call:
+ *
+ * <ul>
+ *   <li>A token bucket sized from the API's quota. Each call takes as many tokens as it costs in
+ *       quota, and the bucket refills at the rate the quota allows.
+ *   <li>A concurrency limit that adapts to how the API is doing (AIMD). It grows by about one for
+ *       every limit's worth of calls that succeed in normal time, and is halved when a call is
+ *       throttled, fails with a server error, or calls have been much slower than usual for a
+ *       while.
+ * </ul>
+ *
+ * What is usual is tracked per endpoint, since one API serves calls that take very different
+ * times, like a YouTube search and a video lookup. A single slow call says little, as latency also
+ * varies with what is sent, so the limit only backs off once several calls in a row to an endpoint
+ * were well above its long-term average.
+ *
+ * A call that can't go out yet waits in a queue for a short while. If the queue is full, or the
+ * bucket wouldn't have enough tokens in time, the call fails right away instead.
+ */
+final class UpstreamLimiter {
+  // How long a call may wait for its turn before it fails
+  private static final long MAX_WAIT_NANOS =
+      TimeUnit.MILLISECONDS.toNanos(
+          Long.parseLong(System.getenv().getOrDefault("UPSTREAM_MAX_WAIT_MS", "2000")));
+  private static final int MAX_QUEUE =
+      Integer.parseInt(System.getenv().getOrDefault("UPSTREAM_MAX_QUEUE", "256"));
+
+  // Calls this many times slower than the long-term average count as a sign of overload
+  private static final double LATENCY_TOLERANCE = 2.0;
+  // How many calls in a row have to be that slow before the limit backs off
+  private static final int SLOW_CALLS_TO_BACK_OFF = 5;
+  private static final double BACKOFF_RATIO = 0.5;
+  // Weight of a new sample in the average latency of recent calls
+  private static final double LATENCY_SMOOTHING = 0.1;
+  // Weight of a new sample in the long-term average, so that it follows a slower but healthy API.
+  // Samples are capped at the tolerance first, so one very slow call doesn't move it much.
+  private static final double BASELINE_SMOOTHING = 0.01;
+  // An endpoint's latency isn't judged before its long-term average is based on this many calls
+  private static final int MIN_BASELINE_SAMPLES = 20;
+
+  private static final ScheduledExecutorService TIMER =
+      Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("upstream-limiter"));
+
+  private final String name;
+  private final LongSupplier clock;
+  private final int maxLimit;
+  private final double tokensPerNano;
+  private final double capacity;
+
+  // Guarded by this
+  private double tokens;
+  private long refilledAt;
+  private double limit;
+  private int inFlight;
+  private double latencyNanos = Double.NaN;
+  private final Map<String, EndpointLatency> endpoints = new HashMap<>();
+  private long lastDecreaseAt;
+  private final ArrayDeque<Waiter> waiters = new ArrayDeque<>();
+  private double queuedCost;
+  private long granted;
+  private long rejected;
+  private long timedOut;
+  private long overloaded;
+
+  /** A call that is waiting for its turn */
+  private static final class Waiter {
+    final int cost;
+    final String endpoint;
+    final long deadline;
+    final CompletableFuture<Permit> turn = new CompletableFuture<>();
+
+    Waiter(int cost, String endpoint, long deadline) {
+      this.cost = cost;
+      this.endpoint = endpoint;
+      this.deadline = deadline;
+    }
+  }
+
+  /** How long the calls to one endpoint take, recently and in the long run */
+  private static final class EndpointLatency {
+    double recentNanos;
+    double baselineNanos;
+    int samples;
+    int slowCalls;
+
+    /** @return whether calls have been slow for long enough to back off */
+    boolean add(long latency) {
+      samples++;
+      recentNanos =
+          samples == 1 ? latency : recentNanos + (latency - recentNanos) * LATENCY_SMOOTHING;
+      if (samples <= MIN_BASELINE_SAMPLES) {
+        // A plain average of the first calls, so one fast or slow first call doesn't skew it
+        baselineNanos += (latency - baselineNanos) / samples;
+        return false;
+      }
+
+      boolean slow = latency > LATENCY_TOLERANCE * baselineNanos;
+      baselineNanos +=
+          (Math.min(latency, LATENCY_TOLERANCE * baselineNanos) - baselineNanos)
+              * BASELINE_SMOOTHING;
+      if (!slow) {
+        slowCalls = 0;
+        return false;
+      }
+      if (++slowCalls < SLOW_CALLS_TO_BACK_OFF) {
+        return false;
+      }
+      slowCalls = 0;
+      return true;
+    }
+  }
+
+  /** The right to make one call. Must be released once the response has arrived. */
+  final class Permit {
+    private final String endpoint;
+    private final long grantedAt = clock.getAsLong();
+    private final AtomicBoolean released = new AtomicBoolean();
+
+    private Permit(String endpoint) {
+      this.endpoint = endpoint;
+    }
+
+    /**
+     * Gives the permit back, and adapts the concurrency limit to how the call went.
+     *
+     * @param statusCode the status of the response, or -1 if the call failed without one
+     */
+    void release(int statusCode) {
+      if (released.compareAndSet(false, true)) {
+        boolean throttled = statusCode < 0 || statusCode == 429 || statusCode >= 500;
+        onRelease(endpoint, throttled, clock.getAsLong() - grantedAt);
+      }
+    }
+  }
+
+  /**
+   * @param name the name of the API, used in error messages
+   * @param tokensPerSecond how fast the quota refills
+   * @param capacity how much quota may be used in one burst
+   * @param maxLimit the most calls that may be in flight at once
+   */
+  UpstreamLimiter(String name, double tokensPerSecond, double capacity, int maxLimit) {
+    this(name, tokensPerSecond, capacity, maxLimit, System::nanoTime);
+  }
+
+  /** @param clock the time in nanos, which tests can move forward themselves */
+  UpstreamLimiter(
+      String name, double tokensPerSecond, double capacity, int maxLimit, LongSupplier clock) {
+    this.name = name;
+    this.clock = clock;
+    this.tokensPerNano = tokensPerSecond / TimeUnit.SECONDS.toNanos(1);
+    this.capacity = capacity;
+    this.maxLimit = maxLimit;
+    this.tokens = capacity;
+    this.refilledAt = clock.getAsLong();
+    this.lastDecreaseAt = refilledAt;
+    // Starts low and grows while the API keeps up
+    this.limit = Math.max(1, maxLimit / 4);
+  }
+
+  /**
+   * Waits for a turn to make a call.
+   *
+   * @param cost how much of the quota the call uses up
+   * @param endpoint what the call is to, whose latency is judged on its own
+   * @return a future of the permit to make the call with. It fails with an
+   *     UpstreamRateLimitedException if the call can't be made within UPSTREAM_MAX_WAIT_MS.
+   */
+  CompletableFuture<Permit> acquire(int cost, String endpoint) {
+    long now = clock.getAsLong();
+    synchronized (this) {
+      refill(now);
+      if (waiters.isEmpty() && canGrant(cost)) {
+        return CompletableFuture.completedFuture(grant(cost, endpoint));
+      }
+
+      // Tokens the call would have to wait for, after everyone ahead of it
+      double missingTokens = queuedCost + cost - tokens;
+      if (cost > capacity
+          || waiters.size() >= MAX_QUEUE
+          || missingTokens / tokensPerNano > MAX_WAIT_NANOS) {
+        rejected++;
+        return CompletableFuture.failedFuture(rateLimited(missingTokens));
+      }
+
+      Waiter waiter = new Waiter(cost, endpoint, now + MAX_WAIT_NANOS);
+      waiters.add(waiter);
+      queuedCost += cost;
+      scheduleDrain(now);
+      return waiter.turn;
+    }
+  }
+
+  /**
+   * Takes a turn only if one is free right now, for calls that are only worth making right away.
+   *
+   * @param cost how much of the quota the call uses up
+   * @param endpoint what the call is to, whose latency is judged on its own
+   * @return the permit to make the call with, or null if the call would have to wait
+   */
+  synchronized Permit tryAcquire(int cost, String endpoint) {
+    refill(clock.getAsLong());
+    return waiters.isEmpty() && canGrant(cost) ? grant(cost, endpoint) : null;
+  }
+
+  private void onRelease(String endpoint, boolean throttled, long latency) {
+    long now = clock.getAsLong();
+    synchronized (this) {
+      inFlight--;
+      if (throttled) {
+        overloaded++;
+        decrease(now);
+      } else {
+        latencyNanos =
+            Double.isNaN(latencyNanos)
+                ? latency
+                : latencyNanos + (latency - latencyNanos) * LATENCY_SMOOTHING;
+
+        if (endpoints.computeIfAbsent(endpoint, key -> new EndpointLatency()).add(latency)) {
+          overloaded++;
+          decrease(now);
+        } else if (inFlight + 1 >= limit / 2) {
+          // Only grows while the limit is actually being used
+          limit = Math.min(maxLimit, limit + 1 / limit);
+        }
+      }
+    }
+    drain();
+  }
+
+  /**
+   * @param missingTokens how much more quota the call needs than there is
+   * @return the failure of a call turned away, saying when the quota will have refilled enough
+   */
+  private UpstreamRateLimitedException rateLimited(double missingTokens) {
+    long retryAfterNanos = (long) Math.ceil(Math.max(0, missingTokens) / tokensPerNano);
+    return new UpstreamRateLimitedException(
+        name + " calls are rate limited, try again later",
+        Math.max(1, TimeUnit.NANOSECONDS.toSeconds(retryAfterNanos) + 1));
+  }
+
+  /** Halves the limit, at most once per round trip so one burst of failures counts once */
+  private void decrease(long now) {
+    double roundTrip = Double.isNaN(latencyNanos) ? 0 : latencyNanos;
+    if (now - lastDecreaseAt > roundTrip) {
+      limit = Math.max(1, limit * BACKOFF_RATIO);
+      lastDecreaseAt = now;
+    }
+  }
+
+  /** Lets waiting calls go out as far as the limits allow, and fails those that waited too long */
+  private void drain() {
+    long now = clock.getAsLong();
+    List<Waiter> expired = new ArrayList<>();
+    List<Map.Entry<Waiter, Permit>> turns = new ArrayList<>();
+    synchronized (this) {
+      refill(now);
+      while (!waiters.isEmpty()) {
+        Waiter head = waiters.peek();
+        if (head.deadline - now <= 0) {
+          waiters.poll();
+          queuedCost -= head.cost;
+          timedOut++;
+          expired.add(head);
+        } else if (canGrant(head.cost)) {
+          waiters.poll();
+          queuedCost -= head.cost;
+          turns.add(Map.entry(head, grant(head.cost, head.endpoint)));
+        } else {
+          break;
+        }
+      }
+      if (!waiters.isEmpty()) {
+        scheduleDrain(now);
+      }
+    }
+
+    // Completed outside the lock, since the calls start right away on this thread
+    for (Waiter waiter : expired) {
+      waiter.turn.completeExceptionally(rateLimited(waiter.cost));
+    }
+    for (Map.Entry<Waiter, Permit> turn : turns) {
+      if (!turn.getKey().turn.complete(turn.getValue())) {
+        // The caller gave up waiting, so the call isn't made
+        giveBack(turn.getKey().cost);
+      }
+    }
+  }
+
+  /**
+   * Wakes the queue up once the head has enough tokens, or has waited too long. A head waiting for
+   * a free slot is woken up by a release, or at its deadline.
+   */
+  private void scheduleDrain(long now) {
+    Waiter head = waiters.peek();
+    long wakeAt = head.deadline;
+    if (head.cost > tokens) {
+      wakeAt = Math.min(wakeAt, now + (long) Math.ceil((head.cost - tokens) / tokensPerNano));
+    }
+    TIMER.schedule(this::drain, Math.max(0, wakeAt - now), TimeUnit.NANOSECONDS);
+  }
+
+  private boolean canGrant(int cost) {
+    return inFlight < (int) limit && tokens >= cost;
+  }
+
+  private Permit grant(int cost, String endpoint) {
+    tokens -= cost;
+    inFlight++;
+    granted++;
+    return new Permit(endpoint);
+  }
+
+  private synchronized void giveBack(int cost) {
+    inFlight--;
+    tokens = Math.min(capacity, tokens + cost);
+  }
+
+  private void refill(long now) {
+    tokens = Math.min(capacity, tokens + (now - refilledAt) * tokensPerNano);
+    refilledAt = now;
+  }
+
+  /** @return the limits and how many calls they let through, held back or turned away */
+  synchronized Map<String, Object> getStats() {
+    refill(clock.getAsLong());
+    Map<String, Object> stats = new LinkedHashMap<>();
+    stats.put("concurrencyLimit", limit);
+    stats.put("inFlight", inFlight);
+    stats.put("queued", waiters.size());
+    stats.put("tokens", tokens);
+    stats.put("granted", granted);
+    stats.put("rejected", rejected);
+    stats.put("timedOut", timedOut);
+    stats.put("overloaded", overloaded);
+    stats.put("latencyMs", toMillis(latencyNanos));
+    Map<String, Object> endpointStats = new LinkedHashMap<>();
+    endpoints.forEach(
+        (endpoint, latency) ->
+            endpointStats.put(
+                endpoint,
+                Map.of(
+                    "latencyMs", toMillis(latency.recentNanos),
+                    "baselineLatencyMs", toMillis(latency.baselineNanos))));
+    stats.put("endpoints", endpointStats);
+    return stats;
+  }
+
+  private static double toMillis(double nanos) {
+    return Double.isNaN(nanos) ? 0 : nanos / TimeUnit.MILLISECONDS.toNanos(1);
+  }
+}
@@ -0,0 +1,21 @@
+package com.google.musicanalysis.api;
+
+/**
+ * Thrown when a call to an upstream API isn't made because the API's quota is used up for now.
+ * Says when there should be enough quota again, so that clients can be told when to come back.
+ */
+public class UpstreamRateLimitedException extends UpstreamUnavailableException {
+  private static final long serialVersionUID = 1L;
+
+  private final long retryAfterSeconds;
+
+  public UpstreamRateLimitedException(String message, long retryAfterSeconds) {
+    super(message);
+    this.retryAfterSeconds = retryAfterSeconds;
+  }
+
+  /** @return how many seconds until the call would likely be let through */
+  public long getRetryAfterSeconds() {
+    return retryAfterSeconds;
+  }
+}
@@ -0,0 +1,15 @@
+package com.google.musicanalysis.api;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a call to an upstream API isn't made at all, because the API's circuit breaker is
+ * open or its calls are rate limited. Analyses can leave out what they needed the API for.
+ */
+public class UpstreamUnavailableException extends IOException {
+  private static final long serialVersionUID = 1L;
+
+  public UpstreamUnavailableException(String message) {
+    super(message);
+  }
+}
@@ -1,14 +1,15 @@
 package com.google.musicanalysis.api.naturallanguage;
 
 import com.google.gson.JsonObject;
+import com.google.musicanalysis.api.SharedHttpClient;
 import com.google.musicanalysis.util.Secrets;
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
-import java.net.URL;
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.net.http.HttpRequest.BodyPublishers;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
 
 /** Handles all NLP API requests. Takes text string and returns a JSON response as string. */
 public class SentimentRequest {
@@ -25,39 +26,37 @@ public class SentimentRequest {
    * @return the JSON response as string
    */
   public String getResponse() throws MalformedURLException, IOException {
-    String URL_STRING =
-        String.format(
-            "https://language.googleapis.com/v1/documents:analyzeSentiment?key=%s",
-            Secrets.getSecretString("NL_PERSP_KEY"));
-    URL url = new URL(URL_STRING);
-
-    // Open up the connection
-    HttpURLConnection con = (HttpURLConnection) url.openConnection();
-    con.setRequestMethod("POST");
-    con.setRequestProperty("Content-Type", "application/json; utf-8");
-    con.setRequestProperty("Accept", "application/json");
-    con.setDoOutput(true);
-
-    String jsonString = buildJson();
+    return SharedHttpClient.await(getResponseAsync());
+  }
 
-    // Send out the json string
-    try (OutputStream out = con.getOutputStream()) {
-      byte[] input = jsonString.getBytes("utf-8");
-      out.write(input, 0, input.length);
+  /**
+   * Sends out request JSON Object without blocking.
+   *
+   * @return a future of the JSON response as string, which completes exceptionally with an
+   *     IOException if the request fails
+   */
+  public CompletableFuture<String> getResponseAsync() {
+    String URL_STRING;
+    try {
+      URL_STRING =
+          String.format(
+              "https://language.googleapis.com/v1/documents:analyzeSentiment?key=%s",
+              Secrets.getSecretString("NL_PERSP_KEY"));
+    } catch (IOException e) {
+      return CompletableFuture.failedFuture(e);
     }
 
-    BufferedReader in = new BufferedReader(new InputStreamReader(con.getInputStream(), "utf-8"));
-
-    StringBuffer response = new StringBuffer();
-
-    String chunk;
-    while ((chunk = in.readLine()) != null) {
-      response.append(chunk.trim());
-    }
+    String jsonString = buildJson();
 
-    in.close();
+    HttpRequest request =
+        HttpRequest.newBuilder(URI.create(URL_STRING))
+            .timeout(SharedHttpClient.timeoutFor(URI.create(URL_STRING)))
+            .header("Content-Type", "application/json; utf-8")
+            .header("Accept", "application/json")
+            .POST(BodyPublishers.ofString(jsonString, StandardCharsets.UTF_8))
+            .build();
 
-    return response.toString();
+    return SharedHttpClient.sendAsync(request, "Natural Language request");
   }
 
   private String buildJson() {
@@ -1,17 +1,17 @@
 package com.google.musicanalysis.api.youtube;
 
+import com.google.musicanalysis.api.SharedHttpClient;
 import com.google.musicanalysis.util.Secrets;
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
-import java.net.URL;
+import java.net.URI;
 import java.net.URLEncoder;
+import java.net.http.HttpRequest;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Handles all Youtube API requests. Takes operation string and map of parameters and returns a JSON
@@ -36,31 +36,52 @@ public class YoutubeRequest {
    * @return JSON response string.
    */
   public String getResult() throws MalformedURLException, IOException {
+    return SharedHttpClient.await(getResultAsync());
+  }
 
-    StringBuffer buffer = new StringBuffer();
-
-    URL url = buildUrl();
-
-    HttpURLConnection con = (HttpURLConnection) url.openConnection();
-    int response = con.getResponseCode();
-    if (response != 200) {
-      throw new IOException("issue with getting video in Youtube Request");
-    }
-
-    BufferedReader in = new BufferedReader(new InputStreamReader(url.openStream(), "UTF-8"));
+  /**
+   * Makes the Youtube API call without blocking.
+   *
+   * @return a future of the JSON response string, which completes exceptionally with an
+   *     IOException if the request fails
+   */
+  public CompletableFuture<String> getResultAsync() {
+    return SharedHttpClient.sendAsync(buildRequest(), "getting video in Youtube Request");
+  }
 
-    // reading chunks of response into the buffer
-    String chunk;
-    while ((chunk = in.readLine()) != null) {
-      buffer.append(chunk);
-    }
+  /**
+   * Makes the Youtube API call, and reads what is needed from the response while it streams in.
+   *
+   * @param parser reads the response, usually one of the {@link YoutubeResponses} methods
+   * @return what the parser returned
+   */
+  public <T> T getResult(SharedHttpClient.BodyParser<T> parser) throws IOException {
+    return SharedHttpClient.await(getResultAsync(parser));
+  }
 
-    in.close();
+  /**
+   * Makes the Youtube API call without blocking, and reads what is needed from the response while
+   * it streams in.
+   *
+   * @param parser reads the response, usually one of the {@link YoutubeResponses} methods
+   * @return a future of what the parser returned, which completes exceptionally with an
+   *     IOException if the request or the parser fails
+   */
+  public <T> CompletableFuture<T> getResultAsync(SharedHttpClient.BodyParser<T> parser) {
+    return SharedHttpClient.sendAsync(
+        buildRequest(), "getting video in Youtube Request", parser);
+  }
 
-    return buffer.toString();
+  private HttpRequest buildRequest() {
+    URI uri = buildUri();
+    return HttpRequest.newBuilder(uri)
+        .timeout(SharedHttpClient.timeoutFor(uri))
+        .header("Accept", "application/json")
+        .GET()
+        .build();
   }
 
-  private URL buildUrl() throws MalformedURLException {
+  private URI buildUri() {
     ArrayList<String> ops = new ArrayList<>();
 
     for (Map.Entry<String, String> entry : this.parameters.entrySet()) {
@@ -68,8 +89,7 @@ public class YoutubeRequest {
     }
 
     String urlString = BASE_URL + this.operation + "?" + String.join("&", ops) + API_KEY;
-    URL url = new URL(urlString);
-    return url;
+    return URI.create(urlString);
   }
 
   private String encode(String param) {
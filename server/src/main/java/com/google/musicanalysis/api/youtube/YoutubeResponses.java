@@ -0,0 +1,299 @@
+package com.google.musicanalysis.api.youtube;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.musicanalysis.api.SharedHttpClient;
+import com.google.musicanalysis.types.Comment;
+import com.google.musicanalysis.types.VideoInfo;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Pulls the few fields the analysis needs out of Youtube API responses while they are streamed in.
+ * Everything else is skipped by the reader without being turned into objects, so a response never
+ * has to be held in memory as a string or a JSON tree.
+ *
+ * <p>Each method can be passed to {@link YoutubeRequest#getResult(SharedHttpClient.BodyParser)}.
+ */
+public final class YoutubeResponses {
+  private YoutubeResponses() {}
+
+  /** Handles one field of an object. Must consume the field's value, or skip it. */
+  @FunctionalInterface
+  private interface FieldReader {
+    void read(String name) throws IOException;
+  }
+
+  /** The comments of one page of a commentThreads response */
+  public static final class CommentPage {
+    public final ArrayList<Comment> comments;
+    /** Token to request the next page with, or null if this is the last page */
+    public final String nextPageToken;
+
+    CommentPage(ArrayList<Comment> comments, String nextPageToken) {
+      this.comments = comments;
+      this.nextPageToken = nextPageToken;
+    }
+  }
+
+  /**
+   * Reads the top level comment of each comment thread in a commentThreads response, and the token
+   * of the next page.
+   *
+   * @param body the response body
+   * @return the comments, with their text as written by the user
+   */
+  public static CommentPage readCommentPage(InputStream body) throws IOException {
+    ArrayList<Comment> comments = new ArrayList<>();
+    String[] nextPageToken = new String[1];
+    JsonReader reader = open(body);
+    readItems(
+        reader,
+        () -> {
+          Comment comment = new Comment(null, 0);
+          readObject(
+              reader,
+              field -> {
+                switch (field) {
+                  case "textOriginal":
+                    comment.text = reader.nextString();
+                    break;
+                  case "likeCount":
+                    comment.likes = reader.nextInt();
+                    break;
+                  default:
+                    reader.skipValue();
+                }
+              },
+              "snippet",
+              "topLevelComment",
+              "snippet");
+          if (comment.text != null) {
+            comments.add(comment);
+          }
+        },
+        field -> {
+          if (field.equals("nextPageToken")) {
+            nextPageToken[0] = reader.nextString();
+          } else {
+            reader.skipValue();
+          }
+        });
+    return new CommentPage(comments, nextPageToken[0]);
+  }
+
+  /**
+   * Reads the id of the first video in a search response.
+   *
+   * @param body the response body
+   * @return the video id
+   * @throws IOException if the response doesn't contain any video
+   */
+  public static String readFirstVideoId(InputStream body) throws IOException {
+    String[] videoId = new String[1];
+    JsonReader reader = open(body);
+    readItems(
+        reader,
+        () ->
+            readObject(
+                reader,
+                field -> {
+                  // Channels and playlists have no videoId, so the first video may not be first
+                  if (field.equals("videoId") && videoId[0] == null) {
+                    videoId[0] = reader.nextString();
+                  } else {
+                    reader.skipValue();
+                  }
+                },
+                "id"));
+
+    if (videoId[0] == null) {
+      throw new IOException("Youtube search returned no videos");
+    }
+    return videoId[0];
+  }
+
+  /**
+   * Reads the title, channel and publish date of the first video in a videos response.
+   *
+   * @param body the response body
+   * @return the video information
+   * @throws IOException if the response doesn't contain a video
+   */
+  public static VideoInfo readVideoInfo(InputStream body) throws IOException {
+    String[] snippet = new String[3];
+    boolean[] first = {true};
+    JsonReader reader = open(body);
+    readItems(
+        reader,
+        () -> {
+          if (!first[0]) {
+            reader.skipValue();
+            return;
+          }
+          first[0] = false;
+          readObject(
+              reader,
+              field -> {
+                switch (field) {
+                  case "title":
+                    snippet[0] = reader.nextString();
+                    break;
+                  case "channelTitle":
+                    snippet[1] = reader.nextString();
+                    break;
+                  case "publishedAt":
+                    snippet[2] = reader.nextString();
+                    break;
+                  default:
+                    reader.skipValue();
+                }
+              },
+              "snippet");
+        });
+
+    if (snippet[0] == null || snippet[1] == null || snippet[2] == null) {
+      throw new IOException("Youtube returned no information about the video");
+    }
+    return toVideoInfo(snippet);
+  }
+
+  /**
+   * Reads the title, channel and publish date of every video in a videos response, such as one
+   * that asked for several ids at once.
+   *
+   * @param body the response body
+   * @return the video information by video id. Videos Youtube didn't return are left out.
+   * @throws IOException if a video has a bad publish date
+   */
+  public static HashMap<String, VideoInfo> readVideoInfos(InputStream body) throws IOException {
+    HashMap<String, VideoInfo> videoInfos = new HashMap<>();
+    JsonReader reader = open(body);
+    readItems(
+        reader,
+        () -> {
+          String[] video = new String[4];
+          readObject(
+              reader,
+              field -> {
+                switch (field) {
+                  case "id":
+                    video[3] = reader.nextString();
+                    break;
+                  case "snippet":
+                    readObject(
+                        reader,
+                        snippetField -> {
+                          switch (snippetField) {
+                            case "title":
+                              video[0] = reader.nextString();
+                              break;
+                            case "channelTitle":
+                              video[1] = reader.nextString();
+                              break;
+                            case "publishedAt":
+                              video[2] = reader.nextString();
+                              break;
+                            default:
+                              reader.skipValue();
+                          }
+                        });
+                    break;
+                  default:
+                    reader.skipValue();
+                }
+              });
+          if (video[0] != null && video[1] != null && video[2] != null && video[3] != null) {
+            videoInfos.put(video[3], toVideoInfo(video));
+          }
+        });
+    return videoInfos;
+  }
+
+  /** @param snippet the title, channel and publish date of a video */
+  private static VideoInfo toVideoInfo(String[] snippet) throws IOException {
+    try {
+      return new VideoInfo(snippet[0], snippet[1], OffsetDateTime.parse(snippet[2]).toInstant());
+    } catch (DateTimeParseException e) {
+      throw new IOException("Youtube returned a bad publish date", e);
+    }
+  }
+
+  private static JsonReader open(InputStream body) {
+    return new JsonReader(new InputStreamReader(body, StandardCharsets.UTF_8));
+  }
+
+  /** Reads an item of the items array. Must consume the item. */
+  @FunctionalInterface
+  private interface ItemReader {
+    void read() throws IOException;
+  }
+
+  /** Calls onItem for each element of the top level items array, and skips everything else */
+  private static void readItems(JsonReader reader, ItemReader onItem) throws IOException {
+    readItems(reader, onItem, field -> reader.skipValue());
+  }
+
+  /**
+   * Calls onItem for each element of the top level items array, and onField for every other top
+   * level field.
+   */
+  private static void readItems(JsonReader reader, ItemReader onItem, FieldReader onField)
+      throws IOException {
+    reader.beginObject();
+    while (reader.hasNext()) {
+      String name = reader.nextName();
+      if (name.equals("items") && reader.peek() == JsonToken.BEGIN_ARRAY) {
+        reader.beginArray();
+        while (reader.hasNext()) {
+          onItem.read();
+        }
+        reader.endArray();
+      } else {
+        onField.read(name);
+      }
+    }
+    reader.endObject();
+  }
+
+  /**
+   * Follows a path of nested objects from the object the reader is at, and calls onField for each
+   * field of the object at the end of the path. Objects off the path are skipped, as is the whole
+   * value if the path isn't there.
+   *
+   * @param reader the reader, positioned at the start of an object
+   * @param onField handles each field at the end of the path
+   * @param path the names of the nested objects to follow
+   */
+  private static void readObject(JsonReader reader, FieldReader onField, String... path)
+      throws IOException {
+    readObject(reader, onField, path, 0);
+  }
+
+  private static void readObject(JsonReader reader, FieldReader onField, String[] path, int depth)
+      throws IOException {
+    if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+      reader.skipValue();
+      return;
+    }
+
+    reader.beginObject();
+    while (reader.hasNext()) {
+      String name = reader.nextName();
+      if (depth == path.length) {
+        onField.read(name);
+      } else if (name.equals(path[depth])) {
+        readObject(reader, onField, path, depth + 1);
+      } else {
+        reader.skipValue();
+      }
+    }
+    reader.endObject();
+  }
+}
@@ -1,128 +1,200 @@
 package com.google.musicanalysis.cache;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.github.benmanes.caffeine.cache.Scheduler;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
 import com.google.musicanalysis.types.*;
+import com.google.musicanalysis.util.Metrics;
+import com.google.musicanalysis.util.NamedThreadFactory;
 import com.google.musicanalysis.util.Secrets;
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.EOFException;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
-import javax.crypto.BadPaddingException;
-import javax.crypto.Cipher;
-import javax.crypto.CipherInputStream;
-import javax.crypto.CipherOutputStream;
-import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.NoSuchPaddingException;
-import javax.crypto.SealedObject;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import javax.crypto.spec.SecretKeySpec;
 import java.time.Instant;
 
-enum FileStatus {
-  SUCCESS,
-  CREATED,
-  EXISTS
-}
-
-/** Implementation of server side cache that stores API requests to save time and API quota. */
+/**
+ * Implementation of server side cache that stores API requests to save time and API quota.
+ *
+ * <p>Entries are held in a Caffeine cache, which is safe to use from many servlet threads at once.
+ * The cache is bounded by the estimated size of the stored analyses (ANALYSIS_CACHE_MAX_BYTES), and
+ * evicts using W-TinyLFU, so videos that are requested often stay cached.
+ *
+ * <p>Entries have a soft and a hard time to live. Once an entry is older than the soft TTL it is
+ * still returned, but a refresh of it is started in the background, on an executor with a few
+ * threads and a bounded queue so that refreshes never pile up. Once an entry is older than the
+ * hard TTL it is gone, which is tracked per entry by a timer wheel rather than by scanning. So a
+ * video that keeps being requested is refreshed before it expires, and never causes a miss.
+ *
+ * <p>Every add and delete is also written to a {@link CacheJournal}, so the cache survives the
+ * instance being shut down or killed. After a restart, entries are read back from the journal's
+ * checkpoint the first time they are retrieved.
+ *
+ * <p>Each entry also holds the analysis serialized as JSON, plain and gzipped, so a hit can be
+ * served without serializing it again.
+ */
 public class AnalysisCache {
-  private static final String CACHE_FILE = "cachedData.txt";
-  private static final long ONE_DAY_IN_SECONDS = 24 * 60 * 60;
+  private static final Logger LOGGER = Logger.getLogger(AnalysisCache.class.getName());
+  private static final String JOURNAL_DIR =
+      System.getenv().getOrDefault("CACHE_JOURNAL_DIR", "cacheJournal");
+  private static final long SOFT_TTL_SECONDS =
+      Long.parseLong(System.getenv().getOrDefault("ANALYSIS_CACHE_SOFT_TTL_SECONDS", "43200"));
+  private static final long HARD_TTL_SECONDS =
+      Long.parseLong(System.getenv().getOrDefault("ANALYSIS_CACHE_HARD_TTL_SECONDS", "86400"));
+  // How long to wait before refreshing an entry again, when the last refresh didn't replace it
+  private static final long REFRESH_RETRY_MS =
+      Long.parseLong(System.getenv().getOrDefault("ANALYSIS_CACHE_REFRESH_RETRY_MS", "60000"));
+  private static final int REFRESH_THREADS =
+      Integer.parseInt(System.getenv().getOrDefault("ANALYSIS_CACHE_REFRESH_THREADS", "2"));
+  private static final int REFRESH_QUEUE_SIZE =
+      Integer.parseInt(System.getenv().getOrDefault("ANALYSIS_CACHE_REFRESH_QUEUE", "32"));
+  private static final long MAX_WEIGHT_BYTES =
+      Long.parseLong(
+          System.getenv().getOrDefault("ANALYSIS_CACHE_MAX_BYTES", String.valueOf(64 << 20)));
 
-  private static HashMap<String, CacheValue> cacheMap = new HashMap<String, CacheValue>();
-  private static Cipher cipher;
-  private static FileStatus currentFileStatus;
+  private static final Cache<String, CacheEntry> cacheMap =
+      Caffeine.newBuilder()
+          .maximumWeight(MAX_WEIGHT_BYTES)
+          .weigher(
+              (String key, CacheEntry entry) ->
+                  entry.value.responseData.estimateSizeInBytes()
+                      + entry.response.estimateSizeInBytes())
+          .expireAfter(new HardTtlExpiry())
+          .scheduler(Scheduler.systemScheduler())
+          .recordStats()
+          .build();
+  private static volatile CacheJournal journal;
 
-  private static volatile AnalysisCache AnalysisCacheObject;
+  private static final ThreadPoolExecutor refreshExecutor =
+      new ThreadPoolExecutor(
+          REFRESH_THREADS,
+          REFRESH_THREADS,
+          0,
+          TimeUnit.MILLISECONDS,
+          new ArrayBlockingQueue<>(REFRESH_QUEUE_SIZE),
+          new NamedThreadFactory("cache-refresh"));
+  private static volatile Refresher refresher;
+  private static final AtomicLong refreshesStarted = new AtomicLong();
+  private static final AtomicLong refreshesRejected = new AtomicLong();
+  private static final AtomicLong refreshesFailed = new AtomicLong();
 
-  private AnalysisCache() throws NoSuchAlgorithmException, NoSuchPaddingException {
-    this.cipher = Cipher.getInstance("Blowfish");
-    currentFileStatus = createFile();
+  static {
+    Metrics.register("analysisCache", AnalysisCache::getStats);
   }
 
-  // Singleton paradigm ensures cache can only be loaded once
-  public static AnalysisCache getInstance()
-      throws NoSuchAlgorithmException, NoSuchPaddingException {
-    if (AnalysisCacheObject == null) {
-      // Ensures thread safe
-      synchronized (AnalysisCache.class) {
-        if (AnalysisCacheObject == null) {
-          AnalysisCacheObject = new AnalysisCache();
-        }
-      }
+  /** Recomputes an analysis, and adds it to the cache if it is still eligible */
+  @FunctionalInterface
+  public interface Refresher {
+    void refresh(String requestUrl) throws IOException;
+  }
+
+  /** A cached analysis, along with the response it is served as */
+  private static class CacheEntry {
+    final CacheValue value;
+    final CachedResponse response;
+    // Wall clock millis before which no refresh of this entry is started
+    final AtomicLong nextRefreshAt = new AtomicLong();
+
+    CacheEntry(CacheValue value) {
+      this.value = value;
+      // Clients shouldn't hold on to an analysis that the server itself would refresh
+      this.response =
+          CachedResponse.of(value.responseData, value.timestamp.plusSeconds(SOFT_TTL_SECONDS));
+    }
+
+    boolean isStale() {
+      return !Instant.now().isBefore(value.timestamp.plusSeconds(SOFT_TTL_SECONDS));
     }
-    return AnalysisCacheObject;
   }
-  
+
+  private AnalysisCache() {}
+
   /**
-   * Loads the cache hashmap from the cache file
+   * Loads the cache from the journal, then starts journaling every change. Entries in the journal's
+   * checkpoint are left on disk until they are first retrieved.
+   *
+   * <p>A journal that can't be read, e.g. because its checkpoint is truncated, is moved aside and a
+   * new one is started, so that the cache is still persisted from now on.
    */
-  public static void loadCache()
-      throws InvalidKeyException, IllegalBlockSizeException, BadPaddingException {
+  public static void loadCache() {
+    SecretKeySpec key;
     try {
-      cipher.init(Cipher.DECRYPT_MODE, generateKey());
-      CipherInputStream inFile =
-          new CipherInputStream(new BufferedInputStream(new FileInputStream(CACHE_FILE)), cipher);
-      ObjectInputStream inData = null;
-      try {
-        //double wrapping to determine if there's data to read
-        inData = new ObjectInputStream(inFile);
-        SealedObject encodedResponse = (SealedObject) inData.readObject();
-        inData.close();
-        cacheMap = (HashMap<String, CacheValue>) encodedResponse.getObject(cipher);
-      } catch(EOFException err) {
-        inFile.close();
-        return;
-      }
-      inFile.close();
+      key = generateKey();
     } catch (IOException e) {
-      e.printStackTrace();
-      return;
-    } catch (ClassNotFoundException c) {
-      c.printStackTrace();
+      LOGGER.log(Level.SEVERE, e, () -> "No cache encryption key, the cache won't be persisted");
       return;
     }
+
+    Path directory = Paths.get(JOURNAL_DIR);
+    try {
+      journal = openJournal(directory, key);
+    } catch (IOException e) {
+      Path aside =
+          directory.resolveSibling(
+              directory.getFileName() + ".unreadable-" + System.currentTimeMillis());
+      LOGGER.log(Level.SEVERE, e, () -> "Could not load the cache journal, moving it to " + aside);
+      try {
+        Files.move(directory, aside);
+        journal = openJournal(directory, key);
+      } catch (IOException retryError) {
+        LOGGER.log(
+            Level.SEVERE,
+            retryError,
+            () -> "Could not start a new cache journal, the cache won't be persisted");
+      }
+    }
+  }
+
+  private static CacheJournal openJournal(Path directory, SecretKeySpec key) throws IOException {
+    CacheJournal cacheJournal =
+        new CacheJournal(directory, key, Duration.ofSeconds(HARD_TTL_SECONDS));
+    cacheJournal.replay(
+        (requestUrl, value) -> cacheMap.put(requestUrl, new CacheEntry(value)),
+        cacheMap::invalidate);
+    cacheJournal.start(AnalysisCache::snapshotValues);
+    return cacheJournal;
   }
 
   /**
-   * Saves and writes the cache hashmap into the file
+   * Writes any changes that haven't been written yet, and a final checkpoint of the cache
    */
-  public static void saveCache() throws InvalidKeyException, IllegalBlockSizeException {
-    try {
-      cipher.init(Cipher.ENCRYPT_MODE, generateKey());
-      SealedObject sealedObject = new SealedObject(cacheMap, cipher);
-      CipherOutputStream outFile =
-          new CipherOutputStream(
-              new BufferedOutputStream(new FileOutputStream(CACHE_FILE)), cipher);
-      ObjectOutputStream outData = new ObjectOutputStream(outFile);
-      outData.writeObject(sealedObject);
-      outData.close();
-      outFile.close();
-    } catch (IOException e) {
-      e.printStackTrace();
+  public static void saveCache() {
+    refreshExecutor.shutdownNow();
+    if (journal != null) {
+      journal.close();
     }
   }
 
   /**
-   * Cleans entries that are a day or more old
+   * Sets how stale entries are refreshed. Without a refresher, entries are only replaced once they
+   * have expired and the next request misses.
+   *
+   * @param analysisRefresher recomputes the analysis for a request url
    */
-  public static void cleanDayOldEntries() {
-    long now = Instant.now().getEpochSecond();
+  public static void setRefresher(Refresher analysisRefresher) {
+    refresher = analysisRefresher;
+  }
 
-    for (Map.Entry cachePair : cacheMap.entrySet()) { 
-      CacheValue currentCachedData = (CacheValue)cachePair.getValue();
-      long timeOfCacheEntry = currentCachedData.timestamp.getEpochSecond();
-      if (now - timeOfCacheEntry >= ONE_DAY_IN_SECONDS) {
-        delete((String)cachePair.getKey());
-      }
-    } 
+  /**
+   * Cleans entries that are past the hard TTL. Entries expire on their own, this only makes sure
+   * that ones loaded from an old cache file are dropped right away.
+   */
+  public static void cleanDayOldEntries() {
+    cacheMap.cleanUp();
   }
 
   /**
@@ -130,9 +202,16 @@ public class AnalysisCache {
    *
    * @param requestUrl the request url
    * @param responseData a VideoAnalysis object with all the data
+   * @return the response the value is served as from now on
    */
-  public static void add(String requestUrl, VideoAnalysis responseData) {
-    cacheMap.put(requestUrl, new CacheValue(responseData));
+  public static CachedResponse add(String requestUrl, VideoAnalysis responseData) {
+    CacheValue value = new CacheValue(responseData);
+    CacheEntry entry = new CacheEntry(value);
+    cacheMap.put(requestUrl, entry);
+    if (journal != null) {
+      journal.appendPut(requestUrl, value);
+    }
+    return entry.response;
   }
  
   /**
@@ -142,8 +221,92 @@ public class AnalysisCache {
    * @return a cached value pair
    */
   public static CacheValue retrieve(String requestUrl) {
-    // map.get() returns null if not match
-    return cacheMap.get(requestUrl);
+    CacheEntry entry = retrieveEntry(requestUrl);
+    return entry == null ? null : entry.value;
+  }
+
+  /**
+   * Retrieves a value from the cache, already serialized as a response
+   *
+   * @param requestUrl the request url
+   * @return the response, or null if the value isn't cached
+   */
+  public static CachedResponse retrieveResponse(String requestUrl) {
+    CacheEntry entry = retrieveEntry(requestUrl);
+    return entry == null ? null : entry.response;
+  }
+
+  private static CacheEntry retrieveEntry(String requestUrl) {
+    // A single get, so a miss is only counted once. Entries not read from the checkpoint yet are
+    // loaded from it, and nothing is stored if the checkpoint doesn't have it either.
+    CacheEntry entry =
+        cacheMap.get(
+            requestUrl,
+            key -> {
+              CacheJournal currentJournal = journal;
+              CacheValue value = currentJournal == null ? null : currentJournal.lookup(key);
+              return value == null ? null : new CacheEntry(value);
+            });
+
+    if (entry != null && entry.isStale()) {
+      scheduleRefresh(requestUrl, entry);
+    }
+    return entry;
+  }
+
+  /**
+   * Starts refreshing a stale entry in the background, unless it is already being refreshed or was
+   * tried recently. The entry keeps being served in the meantime.
+   */
+  private static void scheduleRefresh(String requestUrl, CacheEntry entry) {
+    Refresher currentRefresher = refresher;
+    long now = System.currentTimeMillis();
+    long nextRefreshAt = entry.nextRefreshAt.get();
+    if (currentRefresher == null
+        || now < nextRefreshAt
+        || !entry.nextRefreshAt.compareAndSet(nextRefreshAt, now + REFRESH_RETRY_MS)) {
+      return;
+    }
+
+    try {
+      refreshExecutor.execute(
+          () -> {
+            try {
+              currentRefresher.refresh(requestUrl);
+            } catch (IOException | RuntimeException e) {
+              refreshesFailed.incrementAndGet();
+              LOGGER.log(Level.WARNING, e, () -> "Could not refresh cached " + requestUrl);
+            }
+          });
+      refreshesStarted.incrementAndGet();
+    } catch (RejectedExecutionException e) {
+      // Too many refreshes queued already, so let a later request try again
+      refreshesRejected.incrementAndGet();
+      entry.nextRefreshAt.set(0);
+    }
+  }
+
+  /** @return hit rates and refresh counts */
+  private static Map<String, Object> getStats() {
+    CacheStats stats = cacheMap.stats();
+    Map<String, Object> result = new LinkedHashMap<>();
+    result.put("size", cacheMap.estimatedSize());
+    result.put("hitRate", stats.hitRate());
+    result.put("hits", stats.hitCount());
+    result.put("misses", stats.missCount());
+    result.put("evictions", stats.evictionCount());
+    result.put("refreshesStarted", refreshesStarted.get());
+    result.put("refreshesRejected", refreshesRejected.get());
+    result.put("refreshesFailed", refreshesFailed.get());
+    result.put("refreshesQueued", refreshExecutor.getQueue().size());
+    return result;
+  }
+
+  /** @return a copy of every cached value, for the journal to checkpoint */
+  private static Map<String, CacheValue> snapshotValues() {
+    HashMap<String, CacheValue> values = new HashMap<>();
+    cacheMap.asMap().forEach((requestUrl, entry) -> values.put(requestUrl, entry.value));
+    return values;
   }
 
   /**
@@ -152,21 +315,31 @@ public class AnalysisCache {
    * @param requestUrl the request url
    */
   public static void delete(String requestUrl) {
-    cacheMap.remove(requestUrl);
+    cacheMap.invalidate(requestUrl);
+    if (journal != null) {
+      journal.appendDelete(requestUrl);
+    }
   }
 
-  private static FileStatus createFile() {
-    try {
-      File file = new File(CACHE_FILE);
-      if (file.createNewFile()) {
-        return FileStatus.CREATED;
-      } else {
-        return FileStatus.EXISTS;
-      }
-    } catch (IOException e) {
-      e.printStackTrace();
+  /** Expires each entry at the hard TTL after its timestamp, including entries loaded from disk */
+  private static class HardTtlExpiry implements Expiry<String, CacheEntry> {
+    @Override
+    public long expireAfterCreate(String key, CacheEntry entry, long currentTime) {
+      Duration age = Duration.between(entry.value.timestamp, Instant.now());
+      return Math.max(0, Duration.ofSeconds(HARD_TTL_SECONDS).minus(age).toNanos());
+    }
+
+    @Override
+    public long expireAfterUpdate(
+        String key, CacheEntry entry, long currentTime, long currentDuration) {
+      return expireAfterCreate(key, entry, currentTime);
+    }
+
+    @Override
+    public long expireAfterRead(
+        String key, CacheEntry entry, long currentTime, long currentDuration) {
+      return currentDuration;
     }
-    return FileStatus.SUCCESS;
   }
 
   private static SecretKeySpec generateKey() throws IOException {
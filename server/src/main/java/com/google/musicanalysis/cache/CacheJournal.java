@@ -0,0 +1,614 @@
+package com.google.musicanalysis.cache;
+
+import com.google.musicanalysis.types.BinaryCodec;
+import com.google.musicanalysis.types.CacheValue;
+import com.google.musicanalysis.util.NamedThreadFactory;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * An append-only journal of every change made to the AnalysisCache, so that persisting the cache
+ * costs as much as the change rather than as much as the whole cache.
+ *
+ * <p>The journal is a directory of numbered segment files. Each add or delete is queued in memory
+ * and appended to the newest segment by a background thread every CACHE_JOURNAL_FLUSH_MS. Once
+ * enough segments have piled up, the live entries are written out as a checkpoint, and the
+ * segments the checkpoint replaces are deleted.
+ *
+ * <p>Checkpoints are {@link CacheSnapshot}s. Starting up only maps the newest checkpoint and
+ * replays the (small) segments written after it. Entries in the checkpoint are decoded the first
+ * time {@link #lookup} asks for them, so startup time doesn't grow with the size of the cache.
+ * Format changes are versioned through the snapshot header, and a checkpoint in a format this
+ * version doesn't know is skipped.
+ *
+ * <p>The journal also remembers where the newest record of each key written since the checkpoint
+ * is. An entry that was changed and then evicted from the cache before the next checkpoint is
+ * copied from there into it, rather than lost or brought back at its older checkpointed version.
+ *
+ * <p>Each record is stored as [int length][int crc32][encrypted payload]. A record that was only
+ * partly written when the server died fails its length or checksum check, and replay stops there.
+ */
+public class CacheJournal {
+  private static final Logger LOGGER = Logger.getLogger(CacheJournal.class.getName());
+
+  private static final String SEGMENT_PREFIX = "segment-";
+  private static final String CHECKPOINT_PREFIX = "checkpoint-";
+  private static final String SUFFIX = ".log";
+
+  // Record types. 1 was a put without the timestamp, which is no longer read or written.
+  private static final byte DELETE = 2;
+  private static final byte PUT = 3;
+
+  private static final long FLUSH_INTERVAL_MS =
+      Long.parseLong(System.getenv().getOrDefault("CACHE_JOURNAL_FLUSH_MS", "1000"));
+  private static final long SEGMENT_MAX_BYTES =
+      Long.parseLong(
+          System.getenv().getOrDefault("CACHE_JOURNAL_SEGMENT_BYTES", String.valueOf(4 << 20)));
+  private static final int SEGMENTS_PER_CHECKPOINT =
+      Integer.parseInt(System.getenv().getOrDefault("CACHE_JOURNAL_SEGMENTS_PER_CHECKPOINT", "4"));
+
+  private final Path directory;
+  private final SecretKeySpec key;
+  private final Duration entryLifetime;
+  private final ConcurrentLinkedQueue<PendingRecord> pending = new ConcurrentLinkedQueue<>();
+  private final ScheduledExecutorService writer =
+      Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("cache-journal"));
+
+  // Only touched by the writer thread once the journal is started
+  private Supplier<Map<String, CacheValue>> liveEntries;
+  private FileChannel segment;
+  private long segmentSequence;
+  private long lastCheckpointSequence;
+
+  // The newest checkpoint, read by lookup() from any thread
+  private volatile CacheSnapshot snapshot;
+  // Keys deleted since the checkpoint was written, which lookup() must not return
+  private volatile Set<String> deletedKeys = ConcurrentHashMap.newKeySet();
+  // Keys deleted before the checkpoint that is currently being written, if any
+  private volatile Set<String> deletedBeforeCheckpoint = Collections.emptySet();
+  // Where the newest put of each key added since the checkpoint is. Written by the writer thread,
+  // read by lookup() from any thread.
+  private final Map<String, RecordLocation> journaled = new ConcurrentHashMap<>();
+
+  /** A record waiting to be written */
+  private static class PendingRecord {
+    final String requestUrl;
+    final boolean isPut;
+    final byte[] payload;
+
+    PendingRecord(String requestUrl, boolean isPut, byte[] payload) {
+      this.requestUrl = requestUrl;
+      this.isPut = isPut;
+      this.payload = payload;
+    }
+  }
+
+  /** Where a record starts in a segment */
+  private static class RecordLocation {
+    final long segment;
+    final long offset;
+
+    RecordLocation(long segment, long offset) {
+      this.segment = segment;
+      this.offset = offset;
+    }
+  }
+
+  /** A decrypted record */
+  private static class Record {
+    byte op;
+    String requestUrl;
+    // Epoch second the value was created at, or -1 for a delete
+    long timestamp = -1;
+    byte[] encodedValue;
+  }
+
+  /**
+   * @param directory the directory the journal lives in. Created if it doesn't exist.
+   * @param key the key records are encrypted with
+   * @param entryLifetime how long entries are kept, older ones are left out of checkpoints
+   */
+  public CacheJournal(Path directory, SecretKeySpec key, Duration entryLifetime) {
+    this.directory = directory;
+    this.key = key;
+    this.entryLifetime = entryLifetime;
+  }
+
+  /**
+   * Maps the newest checkpoint, and reads every segment written after it, in order. Entries in the
+   * checkpoint aren't passed to onPut, they are read on demand by {@link #lookup}.
+   *
+   * @param onPut called for every entry that was added after the checkpoint
+   * @param onDelete called for every key that was deleted after the checkpoint
+   * @return whether there was anything to read
+   */
+  public boolean replay(BiConsumer<String, CacheValue> onPut, Consumer<String> onDelete)
+      throws IOException {
+    Files.createDirectories(directory);
+    ArrayList<Long> checkpoints = listSequences(CHECKPOINT_PREFIX);
+    ArrayList<Long> segments = listSequences(SEGMENT_PREFIX);
+
+    long checkpoint = checkpoints.isEmpty() ? 0 : checkpoints.get(checkpoints.size() - 1);
+    if (checkpoint > 0) {
+      Path checkpointFile = path(CHECKPOINT_PREFIX, checkpoint);
+      snapshot = CacheSnapshot.open(checkpointFile);
+      if (snapshot == null) {
+        LOGGER.warning(() -> "Skipping cache checkpoint in an unknown format: " + checkpointFile);
+      }
+    }
+    for (long sequence : segments) {
+      if (sequence >= checkpoint) {
+        readFile(sequence, onPut, onDelete);
+      }
+    }
+
+    lastCheckpointSequence = checkpoint;
+    // Never append to a segment that may end in a torn record
+    long lastSegment = segments.isEmpty() ? 0 : segments.get(segments.size() - 1);
+    segmentSequence = Math.max(checkpoint, lastSegment);
+    return checkpoint > 0 || !segments.isEmpty();
+  }
+
+  /**
+   * Starts flushing queued records in the background. Must be called after {@link #replay}.
+   *
+   * @param liveEntries supplies a snapshot of the cache when a checkpoint is written
+   */
+  public void start(Supplier<Map<String, CacheValue>> liveEntries) throws IOException {
+    this.liveEntries = liveEntries;
+    openNextSegment();
+    writer.scheduleWithFixedDelay(
+        this::flushAndCompact, FLUSH_INTERVAL_MS, FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Reads an entry that is no longer in the cache from the segments written since the checkpoint,
+   * or else from the checkpoint.
+   *
+   * @param requestUrl the key of the entry
+   * @return the entry, or null if the journal doesn't have it, or it was deleted or has expired
+   */
+  public CacheValue lookup(String requestUrl) {
+    if (deletedKeys.contains(requestUrl) || deletedBeforeCheckpoint.contains(requestUrl)) {
+      return null;
+    }
+
+    try {
+      RecordLocation location = journaled.get(requestUrl);
+      if (location != null) {
+        try (FileChannel channel =
+            FileChannel.open(path(SEGMENT_PREFIX, location.segment), StandardOpenOption.READ)) {
+          return unexpiredValue(parse(readRecord(channel, location.offset)));
+        } catch (NoSuchFileException e) {
+          // A checkpoint replaced the segment after the location was read, and has the entry
+        }
+      }
+
+      CacheSnapshot current = snapshot;
+      if (current == null) {
+        return null;
+      }
+      for (byte[] encrypted : current.find(CacheSnapshot.hash(requestUrl))) {
+        Record record = parse(encrypted);
+        if (record.op != DELETE && record.requestUrl.equals(requestUrl)) {
+          return unexpiredValue(record);
+        }
+      }
+    } catch (IOException e) {
+      LOGGER.log(Level.WARNING, e, () -> "Could not read " + requestUrl + " from the journal");
+    }
+    return null;
+  }
+
+  /** Queues an added entry to be written */
+  public void appendPut(String requestUrl, CacheValue value) {
+    try {
+      pending.add(new PendingRecord(requestUrl, true, encodePut(requestUrl, value)));
+    } catch (IOException e) {
+      LOGGER.log(Level.WARNING, e, () -> "Could not journal cache entry " + requestUrl);
+    }
+  }
+
+  /** Queues a deleted entry to be written */
+  public void appendDelete(String requestUrl) {
+    synchronized (this) {
+      deletedKeys.add(requestUrl);
+    }
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(bytes);
+      out.writeByte(DELETE);
+      out.writeUTF(requestUrl);
+      pending.add(new PendingRecord(requestUrl, false, bytes.toByteArray()));
+    } catch (IOException e) {
+      LOGGER.log(Level.WARNING, e, () -> "Could not journal cache deletion " + requestUrl);
+    }
+  }
+
+  /** Writes everything that is queued, then a final checkpoint, and stops the writer */
+  public void close() {
+    if (segment == null) {
+      // Never started, so there is nothing to write
+      return;
+    }
+    writer.shutdown();
+    try {
+      writer.awaitTermination(10, TimeUnit.SECONDS);
+      flush();
+      checkpoint();
+      segment.close();
+    } catch (IOException e) {
+      LOGGER.log(Level.SEVERE, e, () -> "Could not flush the cache journal");
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void flushAndCompact() {
+    try {
+      flush();
+      if (segmentSequence - lastCheckpointSequence >= SEGMENTS_PER_CHECKPOINT) {
+        checkpoint();
+      }
+    } catch (IOException | RuntimeException e) {
+      LOGGER.log(Level.SEVERE, e, () -> "Could not write to the cache journal");
+    }
+  }
+
+  /** Appends every queued record to the current segment and syncs it to disk */
+  private void flush() throws IOException {
+    if (pending.isEmpty()) {
+      return;
+    }
+
+    long offset = segment.size();
+    PendingRecord pendingRecord;
+    while ((pendingRecord = pending.poll()) != null) {
+      ByteBuffer record = frame(crypt(Cipher.ENCRYPT_MODE, pendingRecord.payload));
+      if (pendingRecord.isPut) {
+        journaled.put(pendingRecord.requestUrl, new RecordLocation(segmentSequence, offset));
+      } else {
+        journaled.remove(pendingRecord.requestUrl);
+      }
+      offset += record.remaining();
+      while (record.hasRemaining()) {
+        segment.write(record);
+      }
+    }
+    segment.force(false);
+
+    if (segment.size() >= SEGMENT_MAX_BYTES) {
+      openNextSegment();
+    }
+  }
+
+  /**
+   * Writes every live entry to a new checkpoint and deletes the files it replaces. Entries that
+   * were evicted since the previous checkpoint are copied from their newest record in the
+   * segments, and entries that are only in the previous checkpoint, because they were never looked
+   * up, are copied from it. Neither is decoded. Records queued while the checkpoint is written end
+   * up in a newer segment, which is replayed after it.
+   */
+  private void checkpoint() throws IOException {
+    openNextSegment();
+    long sequence = segmentSequence;
+
+    // Deletes from now on are checked against the new checkpoint. The lock makes sure no delete
+    // lands in the old set after it has been used to filter the old checkpoint.
+    Set<String> previousDeletes;
+    synchronized (this) {
+      previousDeletes = deletedKeys;
+      deletedBeforeCheckpoint = previousDeletes;
+      deletedKeys = ConcurrentHashMap.newKeySet();
+    }
+
+    Map<String, CacheValue> live = liveEntries.get();
+    CacheSnapshot previous = snapshot;
+
+    Path temporary = directory.resolve(CHECKPOINT_PREFIX + sequence + ".tmp");
+    try (CacheSnapshot.Writer out = new CacheSnapshot.Writer(temporary)) {
+      for (Map.Entry<String, CacheValue> entry : live.entrySet()) {
+        if (!isExpired(entry.getValue().timestamp.getEpochSecond())) {
+          byte[] payload = encodePut(entry.getKey(), entry.getValue());
+          out.add(CacheSnapshot.hash(entry.getKey()), frame(crypt(Cipher.ENCRYPT_MODE, payload)));
+        }
+      }
+
+      Set<String> carried = new HashSet<>();
+      Map<Long, FileChannel> segments = new HashMap<>();
+      try {
+        for (Map.Entry<String, RecordLocation> entry : journaled.entrySet()) {
+          String requestUrl = entry.getKey();
+          if (live.containsKey(requestUrl)
+              || previousDeletes.contains(requestUrl)
+              || deletedKeys.contains(requestUrl)) {
+            continue;
+          }
+          RecordLocation location = entry.getValue();
+          try {
+            FileChannel channel = segments.get(location.segment);
+            if (channel == null) {
+              channel =
+                  FileChannel.open(path(SEGMENT_PREFIX, location.segment), StandardOpenOption.READ);
+              segments.put(location.segment, channel);
+            }
+            byte[] encrypted = readRecord(channel, location.offset);
+            if (!isExpired(parse(encrypted).timestamp)) {
+              out.add(CacheSnapshot.hash(requestUrl), frame(encrypted));
+            }
+            carried.add(requestUrl);
+          } catch (IOException e) {
+            // Keep whatever version the previous checkpoint has
+            LOGGER.log(Level.WARNING, e, () -> "Could not carry " + requestUrl + " over");
+          }
+        }
+      } finally {
+        for (FileChannel channel : segments.values()) {
+          channel.close();
+        }
+      }
+
+      if (previous != null) {
+        previous.forEach(
+            encrypted -> {
+              Record record = parse(encrypted);
+              if (record.op != DELETE
+                  && !live.containsKey(record.requestUrl)
+                  && !carried.contains(record.requestUrl)
+                  && !previousDeletes.contains(record.requestUrl)
+                  && !deletedKeys.contains(record.requestUrl)
+                  && !isExpired(record.timestamp)) {
+                out.add(CacheSnapshot.hash(record.requestUrl), frame(encrypted));
+              }
+            });
+      }
+
+      out.finish();
+    }
+    Path checkpointFile = path(CHECKPOINT_PREFIX, sequence);
+    Files.move(temporary, checkpointFile, StandardCopyOption.ATOMIC_MOVE);
+    snapshot = CacheSnapshot.open(checkpointFile);
+    deletedBeforeCheckpoint = Collections.emptySet();
+    // Every location is in a segment the checkpoint replaces
+    journaled.clear();
+
+    for (long old : listSequences(SEGMENT_PREFIX)) {
+      if (old < sequence) {
+        Files.deleteIfExists(path(SEGMENT_PREFIX, old));
+      }
+    }
+    for (long old : listSequences(CHECKPOINT_PREFIX)) {
+      if (old < sequence) {
+        // Still readable through the old mapping until nothing uses it
+        Files.deleteIfExists(path(CHECKPOINT_PREFIX, old));
+      }
+    }
+    lastCheckpointSequence = sequence;
+  }
+
+  private void openNextSegment() throws IOException {
+    if (segment != null) {
+      segment.close();
+    }
+    segmentSequence++;
+    segment =
+        FileChannel.open(
+            path(SEGMENT_PREFIX, segmentSequence),
+            StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE,
+            StandardOpenOption.APPEND);
+  }
+
+  /** Adds the length and checksum in front of an encrypted payload */
+  private static ByteBuffer frame(byte[] encrypted) {
+    CRC32 crc = new CRC32();
+    crc.update(encrypted);
+
+    ByteBuffer record = ByteBuffer.allocate(8 + encrypted.length);
+    record.putInt(encrypted.length);
+    record.putInt((int) crc.getValue());
+    record.put(encrypted);
+    record.flip();
+    return record;
+  }
+
+  private void readFile(
+      long sequence, BiConsumer<String, CacheValue> onPut, Consumer<String> onDelete)
+      throws IOException {
+    Path file = path(SEGMENT_PREFIX, sequence);
+    try (DataInputStream in =
+        new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+      long offset = 0;
+      while (true) {
+        int length;
+        try {
+          length = in.readInt();
+        } catch (EOFException e) {
+          return;
+        }
+
+        byte[] encrypted;
+        int expectedCrc;
+        try {
+          expectedCrc = in.readInt();
+          if (length < 0 || length > SEGMENT_MAX_BYTES) {
+            throw new EOFException();
+          }
+          encrypted = new byte[length];
+          in.readFully(encrypted);
+        } catch (EOFException e) {
+          LOGGER.warning(() -> "Ignoring partly written record at the end of " + file);
+          return;
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(encrypted);
+        if ((int) crc.getValue() != expectedCrc) {
+          LOGGER.warning(() -> "Ignoring corrupt record and the rest of " + file);
+          return;
+        }
+
+        Record record = parse(encrypted);
+        if (record.op == DELETE) {
+          deletedKeys.add(record.requestUrl);
+          journaled.remove(record.requestUrl);
+          onDelete.accept(record.requestUrl);
+        } else {
+          journaled.put(record.requestUrl, new RecordLocation(sequence, offset));
+          onPut.accept(record.requestUrl, decodeValue(record.encodedValue));
+        }
+        offset += 8 + length;
+      }
+    }
+  }
+
+  /** Reads the encrypted payload of the record at an offset, checking its length and checksum */
+  private static byte[] readRecord(FileChannel channel, long offset) throws IOException {
+    ByteBuffer header = ByteBuffer.allocate(8);
+    readFully(channel, header, offset);
+    int length = header.getInt(0);
+    if (length < 0 || length > SEGMENT_MAX_BYTES) {
+      throw new IOException("Bad cache journal record length " + length + " at " + offset);
+    }
+    ByteBuffer encrypted = ByteBuffer.allocate(length);
+    readFully(channel, encrypted, offset + 8);
+
+    CRC32 crc = new CRC32();
+    crc.update(encrypted.array());
+    if ((int) crc.getValue() != header.getInt(4)) {
+      throw new IOException("Corrupt cache journal record at " + offset);
+    }
+    return encrypted.array();
+  }
+
+  private static void readFully(FileChannel channel, ByteBuffer buffer, long position)
+      throws IOException {
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, position + buffer.position()) < 0) {
+        throw new EOFException();
+      }
+    }
+  }
+
+  /** @return the value of a put record, or null if it has expired */
+  private CacheValue unexpiredValue(Record record) throws IOException {
+    if (isExpired(record.timestamp)) {
+      return null;
+    }
+    CacheValue value = decodeValue(record.encodedValue);
+    return isExpired(value.timestamp.getEpochSecond()) ? null : value;
+  }
+
+  /** Decrypts and splits up a record */
+  private Record parse(byte[] encrypted) throws IOException {
+    DataInputStream in =
+        new DataInputStream(new ByteArrayInputStream(crypt(Cipher.DECRYPT_MODE, encrypted)));
+    Record record = new Record();
+    record.op = in.readByte();
+    if (record.op != PUT && record.op != DELETE) {
+      throw new IOException("Unknown cache journal record type " + record.op);
+    }
+    record.requestUrl = in.readUTF();
+    if (record.op == PUT) {
+      record.timestamp = in.readLong();
+      record.encodedValue = new byte[in.readInt()];
+      in.readFully(record.encodedValue);
+    }
+    return record;
+  }
+
+  private byte[] encodePut(String requestUrl, CacheValue value) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeByte(PUT);
+    out.writeUTF(requestUrl);
+    out.writeLong(value.timestamp.getEpochSecond());
+    byte[] encodedValue = encodeValue(value);
+    out.writeInt(encodedValue.length);
+    out.write(encodedValue);
+    return bytes.toByteArray();
+  }
+
+  /** @return whether an entry created at the given epoch second is too old to keep */
+  private boolean isExpired(long timestamp) {
+    return timestamp >= 0
+        && Instant.now().getEpochSecond() - timestamp >= entryLifetime.getSeconds();
+  }
+
+  private byte[] crypt(int mode, byte[] data) throws IOException {
+    try {
+      // Ciphers aren't thread safe, and records are small, so each one gets its own
+      Cipher cipher = Cipher.getInstance("Blowfish");
+      cipher.init(mode, key);
+      return cipher.doFinal(data);
+    } catch (GeneralSecurityException e) {
+      throw new IOException("Could not encrypt cache journal record", e);
+    }
+  }
+
+  private static byte[] encodeValue(CacheValue value) {
+    return BinaryCodec.encode(value);
+  }
+
+  /** Values carry their own format version, see {@link BinaryCodec#VERSION} */
+  private static CacheValue decodeValue(byte[] encodedValue) throws IOException {
+    return BinaryCodec.decode(encodedValue);
+  }
+
+  private Path path(String prefix, long sequence) {
+    return directory.resolve(String.format("%s%012d%s", prefix, sequence, SUFFIX));
+  }
+
+  /** @return the sequence numbers of the files with the given prefix, in ascending order */
+  private ArrayList<Long> listSequences(String prefix) throws IOException {
+    ArrayList<Long> sequences = new ArrayList<>();
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, prefix + "*" + SUFFIX)) {
+      for (Path file : files) {
+        String name = file.getFileName().toString();
+        try {
+          sequences.add(
+              Long.parseLong(name.substring(prefix.length(), name.length() - SUFFIX.length())));
+        } catch (NumberFormatException e) {
+          LOGGER.warning(() -> "Ignoring unexpected file in the cache journal: " + name);
+        }
+      }
+    }
+    Collections.sort(sequences);
+    return sequences;
+  }
+}
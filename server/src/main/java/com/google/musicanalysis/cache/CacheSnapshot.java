@@ -0,0 +1,232 @@
+package com.google.musicanalysis.cache;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A checkpoint of the cache that can be used without reading it into memory. The file is memory
+ * mapped, and an index sorted by key hash at the end of the file says where each record starts, so
+ * opening a snapshot costs the same no matter how many entries it holds. Records are only read and
+ * decoded when their key is looked up.
+ *
+ * <pre>
+ * header:  [int magic][int version][int entry count][long index offset]
+ * records: [int length][int crc32][encrypted payload] for each entry
+ * index:   [long key hash][long record offset] for each entry, sorted by hash
+ * </pre>
+ *
+ * <p>Records use the same framing as journal segments. Their payload is opaque to this class,
+ * which only deals with where records are, not what they contain.
+ */
+public class CacheSnapshot {
+  private static final int MAGIC = 0x4d414353; // "MACS"
+  private static final int VERSION = 1;
+  private static final int HEADER_BYTES = 4 + 4 + 4 + 8;
+  private static final int INDEX_SLOT_BYTES = 8 + 8;
+
+  private final MappedByteBuffer buffer;
+  private final int entryCount;
+  private final int indexOffset;
+
+  private CacheSnapshot(MappedByteBuffer buffer, int entryCount, int indexOffset) {
+    this.buffer = buffer;
+    this.entryCount = entryCount;
+    this.indexOffset = indexOffset;
+  }
+
+  /**
+   * Maps a snapshot file.
+   *
+   * @param file the snapshot file
+   * @return the snapshot, or null if the file isn't in the snapshot format or is too big to map
+   */
+  public static CacheSnapshot open(Path file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      long size = channel.size();
+      if (size < HEADER_BYTES || size > Integer.MAX_VALUE) {
+        return null;
+      }
+
+      // The mapping stays valid after the channel is closed
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+      if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+        return null;
+      }
+      int entryCount = buffer.getInt(8);
+      long indexOffset = buffer.getLong(12);
+      if (indexOffset + (long) entryCount * INDEX_SLOT_BYTES != size) {
+        throw new IOException("Cache snapshot " + file + " is truncated");
+      }
+      return new CacheSnapshot(buffer, entryCount, (int) indexOffset);
+    }
+  }
+
+  /** @return how many records the snapshot holds */
+  public int size() {
+    return entryCount;
+  }
+
+  /**
+   * Finds the records whose key has the given hash. Usually there is at most one, but different
+   * keys can share a hash, so the caller has to check the key inside each record.
+   *
+   * @param keyHash the hash of the key, from {@link #hash}
+   * @return the encrypted payload of each matching record
+   */
+  public List<byte[]> find(long keyHash) {
+    ArrayList<byte[]> records = new ArrayList<>(1);
+
+    // Binary search for the first slot with the hash
+    int low = 0;
+    int high = entryCount;
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      if (slotHash(middle) < keyHash) {
+        low = middle + 1;
+      } else {
+        high = middle;
+      }
+    }
+
+    for (int slot = low; slot < entryCount && slotHash(slot) == keyHash; slot++) {
+      records.add(readRecord((int) buffer.getLong(indexOffset + slot * INDEX_SLOT_BYTES + 8)));
+    }
+    return records;
+  }
+
+  /** Receives records read from a snapshot */
+  @FunctionalInterface
+  public interface RecordConsumer {
+    void accept(byte[] record) throws IOException;
+  }
+
+  /**
+   * Reads every record, in file order.
+   *
+   * @param onRecord called with the encrypted payload of each record
+   */
+  public void forEach(RecordConsumer onRecord) throws IOException {
+    int offset = HEADER_BYTES;
+    for (int i = 0; i < entryCount; i++) {
+      byte[] record = readRecord(offset);
+      onRecord.accept(record);
+      offset += 8 + record.length;
+    }
+  }
+
+  /**
+   * Hashes a key with 64 bit FNV-1a, which is cheap and spreads short strings like video ids well.
+   *
+   * @param key the cache key
+   * @return the hash used in the index
+   */
+  public static long hash(String key) {
+    long hash = 0xcbf29ce484222325L;
+    for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+      hash ^= (b & 0xff);
+      hash *= 0x100000001b3L;
+    }
+    return hash;
+  }
+
+  private long slotHash(int slot) {
+    return buffer.getLong(indexOffset + slot * INDEX_SLOT_BYTES);
+  }
+
+  /** The checksum was checked when the snapshot was written, and the file is never modified */
+  private byte[] readRecord(int offset) {
+    int length = buffer.getInt(offset);
+    byte[] record = new byte[length];
+    ByteBuffer view = buffer.duplicate();
+    view.position(offset + 8);
+    view.get(record);
+    return record;
+  }
+
+  /** Writes a new snapshot file. Records are added one at a time, then the index is written. */
+  public static class Writer implements AutoCloseable {
+    private final FileChannel channel;
+    private long[] hashes = new long[1024];
+    private long[] offsets = new long[1024];
+    private int count;
+
+    /** @param file the file to write. It is replaced if it already exists. */
+    public Writer(Path file) throws IOException {
+      channel =
+          FileChannel.open(
+              file,
+              StandardOpenOption.CREATE,
+              StandardOpenOption.TRUNCATE_EXISTING,
+              StandardOpenOption.WRITE);
+      // Filled in by finish() once the index offset is known
+      channel.position(HEADER_BYTES);
+    }
+
+    /**
+     * Appends a record.
+     *
+     * @param keyHash the hash of the record's key, from {@link #hash}
+     * @param framedRecord the record, including its length and checksum
+     */
+    public void add(long keyHash, ByteBuffer framedRecord) throws IOException {
+      if (count == hashes.length) {
+        hashes = Arrays.copyOf(hashes, count * 2);
+        offsets = Arrays.copyOf(offsets, count * 2);
+      }
+      hashes[count] = keyHash;
+      offsets[count] = channel.position();
+      count++;
+
+      while (framedRecord.hasRemaining()) {
+        channel.write(framedRecord);
+      }
+    }
+
+    /** Writes the index and header, and syncs the file to disk */
+    public void finish() throws IOException {
+      long indexOffset = channel.position();
+
+      // Sort the slots by hash, carrying the offsets along
+      Integer[] order = new Integer[count];
+      for (int i = 0; i < count; i++) {
+        order[i] = i;
+      }
+      Arrays.sort(order, (a, b) -> Long.compare(hashes[a], hashes[b]));
+
+      ByteBuffer index = ByteBuffer.allocate(count * INDEX_SLOT_BYTES);
+      for (int i : order) {
+        index.putLong(hashes[i]);
+        index.putLong(offsets[i]);
+      }
+      index.flip();
+      while (index.hasRemaining()) {
+        channel.write(index);
+      }
+
+      ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+      header.putInt(MAGIC);
+      header.putInt(VERSION);
+      header.putInt(count);
+      header.putLong(indexOffset);
+      header.flip();
+      while (header.hasRemaining()) {
+        channel.write(header, header.position());
+      }
+
+      channel.force(true);
+    }
+
+    @Override
+    public void close() throws IOException {
+      channel.close();
+    }
+  }
+}
@@ -0,0 +1,129 @@
+package com.google.musicanalysis.cache;
+
+import com.google.gson.stream.JsonWriter;
+import com.google.musicanalysis.types.JsonAdapters;
+import com.google.musicanalysis.types.VideoAnalysis;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * An analysis already turned into the bytes of a response, so that serving it again is just a
+ * write. Holds the JSON both as is and gzipped, an ETag for each representation derived from the
+ * content, and until when clients may cache it.
+ */
+public final class CachedResponse {
+  // Bytes of the SHA-256 hash used in the ETag, which only has to tell responses apart
+  private static final int ETAG_HASH_BYTES = 16;
+
+  private final byte[] json;
+  private final byte[] gzippedJson;
+  private final String etag;
+  private final String gzippedEtag;
+  private final String eventStreamEtag;
+  private final Instant expiresAt;
+
+  private CachedResponse(byte[] json, byte[] gzippedJson, String etag, Instant expiresAt) {
+    this.json = json;
+    this.gzippedJson = gzippedJson;
+    this.etag = etag;
+    // The gzipped body is a different representation, so a strong ETag must tell it apart
+    this.gzippedEtag = etag.substring(0, etag.length() - 1) + "-gzip\"";
+    this.eventStreamEtag = etag.substring(0, etag.length() - 1) + "-events\"";
+    this.expiresAt = expiresAt;
+  }
+
+  /**
+   * Serializes an analysis.
+   *
+   * @param analysis the analysis to serialize
+   * @param expiresAt when the analysis should no longer be used, or null if it shouldn't be cached
+   * @return the serialized response
+   */
+  public static CachedResponse of(VideoAnalysis analysis, Instant expiresAt) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(analysis.estimateSizeInBytes() / 2);
+    try (JsonWriter writer =
+        new JsonWriter(
+            new BufferedWriter(new OutputStreamWriter(bytes, StandardCharsets.UTF_8), 2048))) {
+      // Escapes HTML characters like Gson does by default
+      writer.setHtmlSafe(true);
+      JsonAdapters.VIDEO_ANALYSIS.write(writer, analysis);
+    } catch (IOException e) {
+      // Can't happen when writing to memory
+      throw new UncheckedIOException(e);
+    }
+    byte[] json = bytes.toByteArray();
+    return new CachedResponse(json, gzip(json), etagOf(json), expiresAt);
+  }
+
+  /** @return the response body as UTF-8 JSON */
+  public byte[] getJson() {
+    return json;
+  }
+
+  /** @return the response body as gzipped UTF-8 JSON */
+  public byte[] getGzippedJson() {
+    return gzippedJson;
+  }
+
+  /** @return a strong ETag of the plain JSON, including the quotes */
+  public String getEtag() {
+    return etag;
+  }
+
+  /** @return a strong ETag of the gzipped JSON, including the quotes */
+  public String getGzippedEtag() {
+    return gzippedEtag;
+  }
+
+  /** @return a strong ETag of the analysis sent as an event stream, including the quotes */
+  public String getEventStreamEtag() {
+    return eventStreamEtag;
+  }
+
+  /** @return when the analysis should no longer be used, or null if it shouldn't be cached */
+  public Instant getExpiresAt() {
+    return expiresAt;
+  }
+
+  /** @return roughly how much memory the response takes up */
+  public int estimateSizeInBytes() {
+    return json.length
+        + gzippedJson.length
+        + 2 * (etag.length() + gzippedEtag.length() + eventStreamEtag.length());
+  }
+
+  private static byte[] gzip(byte[] data) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length / 4);
+    try (GZIPOutputStream out = new GZIPOutputStream(bytes)) {
+      out.write(data);
+    } catch (IOException e) {
+      // Can't happen when writing to memory
+      throw new UncheckedIOException(e);
+    }
+    return bytes.toByteArray();
+  }
+
+  private static String etagOf(byte[] data) {
+    try {
+      byte[] hash = MessageDigest.getInstance("SHA-256").digest(data);
+      return '"'
+          + Base64.getUrlEncoder()
+              .withoutPadding()
+              .encodeToString(Arrays.copyOf(hash, ETAG_HASH_BYTES))
+          + '"';
+    } catch (NoSuchAlgorithmException e) {
+      // Every JVM is required to support SHA-256
+      throw new IllegalStateException(e);
+    }
+  }
+}
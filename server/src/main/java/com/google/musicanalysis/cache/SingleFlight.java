@@ -0,0 +1,111 @@
+package com.google.musicanalysis.cache;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Deduplicates concurrent computations of the same key. While a computation for a key is running,
+ * every other caller asking for that key gets the same future instead of starting a new one.
+ *
+ * @param <K> the key the computations are deduplicated on
+ * @param <V> the result of a computation
+ */
+public class SingleFlight<K, V> {
+  private final ConcurrentHashMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+
+  private final AtomicLong executions = new AtomicLong();
+  private final AtomicLong coalesced = new AtomicLong();
+  private final AtomicLong timeouts = new AtomicLong();
+
+  /**
+   * Starts the computation for the key, or joins the one that is already running.
+   *
+   * @param key the key of the computation
+   * @param compute starts the computation. Only called if none is running for the key.
+   * @return a future of the result, shared by every caller of the same key
+   */
+  public CompletableFuture<V> run(K key, Supplier<CompletableFuture<V>> compute) {
+    CompletableFuture<V> flight = new CompletableFuture<>();
+    CompletableFuture<V> existing = inFlight.putIfAbsent(key, flight);
+    if (existing != null) {
+      coalesced.incrementAndGet();
+      return existing;
+    }
+
+    executions.incrementAndGet();
+    try {
+      compute
+          .get()
+          .whenComplete(
+              (value, error) -> {
+                // Removed before completing, so that nobody can join a finished flight
+                inFlight.remove(key, flight);
+                if (error != null) {
+                  flight.completeExceptionally(error);
+                } else {
+                  flight.complete(value);
+                }
+              });
+    } catch (RuntimeException e) {
+      inFlight.remove(key, flight);
+      flight.completeExceptionally(e);
+    }
+
+    return flight;
+  }
+
+  /**
+   * Waits for a flight returned by {@link #run}. Timing out only stops this caller from waiting,
+   * the computation itself keeps going for the others.
+   *
+   * @param flight the flight to wait for
+   * @param timeout how long to wait
+   * @param unit the unit of the timeout
+   * @return the result of the computation
+   * @throws IOException if the computation failed with an IOException
+   * @throws TimeoutException if the computation didn't finish in time
+   */
+  public V await(CompletableFuture<V> flight, long timeout, TimeUnit unit)
+      throws IOException, TimeoutException {
+    try {
+      return flight.get(timeout, unit);
+    } catch (TimeoutException e) {
+      timeouts.incrementAndGet();
+      throw e;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting for " + flight, e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof CompletionException && cause.getCause() != null) {
+        cause = cause.getCause();
+      }
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new IOException(cause);
+    }
+  }
+
+  /** @return how many computations ran, joined an existing one, or timed out while waiting */
+  public Map<String, Long> getStats() {
+    Map<String, Long> stats = new LinkedHashMap<>();
+    stats.put("executions", executions.get());
+    stats.put("coalesced", coalesced.get());
+    stats.put("timeouts", timeouts.get());
+    stats.put("inFlight", (long) inFlight.size());
+    return stats;
+  }
+}
@@ -1,39 +1,32 @@
 package com.google.musicanalysis.cache;
 
-import com.google.musicanalysis.types.*;
-import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
-import javax.crypto.BadPaddingException;
-import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.NoSuchPaddingException;
+import com.google.musicanalysis.api.SharedHttpClient;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import javax.servlet.ServletContextEvent;
 import javax.servlet.ServletContextListener;
 import javax.servlet.annotation.WebListener;
 
 @WebListener
 public class WarmupListener implements ServletContextListener {
+  private static final Logger LOGGER = Logger.getLogger(WarmupListener.class.getName());
+
   @Override
   public void contextInitialized(ServletContextEvent event) {
+    // Open connections to the Google APIs while the cache loads
+    SharedHttpClient.prewarm();
+
     try {
-      // Only instance of the cache allowed
-      AnalysisCache.getInstance();
       AnalysisCache.loadCache();
       AnalysisCache.cleanDayOldEntries();
-    } catch (InvalidKeyException
-        | IllegalBlockSizeException
-        | NoSuchAlgorithmException
-        | NoSuchPaddingException
-        | BadPaddingException e) {
-      e.printStackTrace();
+    } catch (RuntimeException e) {
+      // The site still works without the cache, it just calls the APIs more
+      LOGGER.log(Level.SEVERE, e, () -> "Could not load the analysis cache");
     }
   }
 
   @Override
   public void contextDestroyed(ServletContextEvent event) {
-    try {
-      AnalysisCache.saveCache();
-    } catch (InvalidKeyException | IllegalBlockSizeException e) {
-      e.printStackTrace();
-    }
+    AnalysisCache.saveCache();
   }
 }
@@ -0,0 +1,159 @@
+package com.google.musicanalysis.site;
+
+import com.google.gson.stream.JsonWriter;
+import com.google.musicanalysis.analysis.AnalysisPipeline;
+import com.google.musicanalysis.types.Comment;
+import com.google.musicanalysis.types.JsonAdapters;
+import com.google.musicanalysis.types.NLPResult;
+import com.google.musicanalysis.types.VideoInfo;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Sends the results of an analysis to the client as server-sent events while its stages finish.
+ * The stages only queue their events, which the request's own thread writes, since a response
+ * can't be written to from several threads.
+ *
+ * <p>The events are:
+ *
+ * <ul>
+ *   <li>videoInfo: the video's name, channel and publish date
+ *   <li>comment: a comment with its sentiment, and the sentiment of every comment so far
+ *   <li>perspective: the Perspective scores of the comments
+ *   <li>analysis: the whole analysis, the same as /api/analysis returns. Always the last event.
+ *   <li>error: sent instead of analysis if the analysis failed or timed out
+ * </ul>
+ *
+ * A request that joins an analysis another request started first gets the events of the stages
+ * that already finished, see {@link AnalysisEvents}. A cached analysis only sends analysis.
+ */
+final class AnalysisEventStream implements AnalysisPipeline.Listener {
+  private static final int WRITER_BUFFER_CHARS = 2048;
+
+  // Queued once the analysis is done, after every event of its stages
+  private static final Event DONE = new Event("done", out -> {});
+
+  private final BlockingQueue<Event> events = new LinkedBlockingQueue<>();
+  private Writer writer;
+
+  /** Writes the JSON data of an event */
+  @FunctionalInterface
+  interface EventData {
+    void write(JsonWriter out) throws IOException;
+  }
+
+  private static final class Event {
+    final String name;
+    final EventData data;
+
+    Event(String name, EventData data) {
+      this.name = name;
+      this.data = data;
+    }
+  }
+
+  @Override
+  public void onVideoInfo(VideoInfo videoInfo) {
+    events.add(new Event("videoInfo", out -> JsonAdapters.VIDEO_INFO.write(out, videoInfo)));
+  }
+
+  @Override
+  public void onCommentScored(Comment comment, NLPResult sentiment, NLPResult weightedSentiment) {
+    events.add(
+        new Event(
+            "comment",
+            out -> {
+              out.beginObject();
+              out.name("comment");
+              JsonAdapters.COMMENT.write(out, comment);
+              out.name("sentiment");
+              JsonAdapters.NLP_RESULT.write(out, sentiment);
+              out.name("weightedSentiment");
+              JsonAdapters.NLP_RESULT.write(out, weightedSentiment);
+              out.endObject();
+            }));
+  }
+
+  @Override
+  public void onPerspective(HashMap<String, String> perspectiveMap) {
+    events.add(
+        new Event("perspective", out -> JsonAdapters.writeStringMap(out, perspectiveMap)));
+  }
+
+  /** Marks the analysis as done, called once it has finished or failed */
+  void finish() {
+    events.add(DONE);
+  }
+
+  /**
+   * Sets the headers of the response. Must be called before anything is sent. Only a cached
+   * analysis sets its own Cache-Control beforehand.
+   *
+   * @param res the response the events are sent on
+   */
+  void start(HttpServletResponse res) throws IOException {
+    res.setContentType("text/event-stream; charset=UTF-8");
+    if (!res.containsHeader("Cache-Control")) {
+      res.setHeader("Cache-Control", "no-cache");
+    }
+    // Stops proxies from holding events back until the response is complete
+    res.setHeader("X-Accel-Buffering", "no");
+    writer =
+        new BufferedWriter(
+            new OutputStreamWriter(res.getOutputStream(), StandardCharsets.UTF_8),
+            WRITER_BUFFER_CHARS);
+    // Lets the client know the stream is open before the first event
+    res.flushBuffer();
+  }
+
+  /**
+   * Sends the events of the stages as they are queued, until the analysis is done or the timeout
+   * runs out.
+   *
+   * @param timeout how long to wait for the analysis
+   * @param unit the unit of the timeout
+   */
+  void sendUntilDone(long timeout, TimeUnit unit) throws IOException {
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
+    while (true) {
+      Event event;
+      try {
+        event = events.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while streaming the analysis", e);
+      }
+      if (event == null || event == DONE) {
+        return;
+      }
+      send(event.name, event.data);
+    }
+  }
+
+  /**
+   * Sends an event, and flushes it to the client.
+   *
+   * @param name the name of the event
+   * @param data writes the event's JSON data
+   */
+  void send(String name, EventData data) throws IOException {
+    writer.write("event: ");
+    writer.write(name);
+    writer.write("\ndata: ");
+    // Compact JSON has no line breaks, so it fits in one data line
+    JsonWriter out = new JsonWriter(writer);
+    // Escapes HTML characters like Gson does by default
+    out.setHtmlSafe(true);
+    data.write(out);
+    writer.write("\n\n");
+    writer.flush();
+  }
+}
@@ -0,0 +1,53 @@
+package com.google.musicanalysis.site;
+
+import com.google.musicanalysis.analysis.AnalysisPipeline;
+import com.google.musicanalysis.types.Comment;
+import com.google.musicanalysis.types.NLPResult;
+import com.google.musicanalysis.types.VideoInfo;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Passes the results of an analysis's stages on to every listener that subscribed to it. A
+ * listener that subscribes after some stages have finished first gets their results, so a request
+ * that joins an analysis another request started sees every stage too.
+ */
+final class AnalysisEvents implements AnalysisPipeline.Listener {
+  // Guarded by this. Holds at most one event per comment, plus one per other stage.
+  private final List<Consumer<AnalysisPipeline.Listener>> history = new ArrayList<>();
+  private final List<AnalysisPipeline.Listener> listeners = new ArrayList<>();
+
+  /**
+   * Passes on the results of the stages that already finished, then those of the rest as they
+   * finish.
+   *
+   * @param listener gets the results of the stages
+   */
+  synchronized void subscribe(AnalysisPipeline.Listener listener) {
+    history.forEach(event -> event.accept(listener));
+    listeners.add(listener);
+  }
+
+  @Override
+  public void onVideoInfo(VideoInfo videoInfo) {
+    publish(listener -> listener.onVideoInfo(videoInfo));
+  }
+
+  @Override
+  public void onCommentScored(Comment comment, NLPResult sentiment, NLPResult weightedSentiment) {
+    publish(listener -> listener.onCommentScored(comment, sentiment, weightedSentiment));
+  }
+
+  @Override
+  public void onPerspective(HashMap<String, String> perspectiveMap) {
+    publish(listener -> listener.onPerspective(perspectiveMap));
+  }
+
+  /** Listeners return quickly, so they are called under the lock to keep the events in order */
+  private synchronized void publish(Consumer<AnalysisPipeline.Listener> event) {
+    history.add(event);
+    listeners.forEach(event);
+  }
+}
@@ -1,380 +1,361 @@
 package com.google.musicanalysis.site;
 
-import com.google.gson.*;
-import com.google.musicanalysis.api.naturallanguage.*;
-import com.google.musicanalysis.api.perspective.*;
-import com.google.musicanalysis.api.youtube.*;
+import com.google.musicanalysis.analysis.*;
+import com.google.musicanalysis.api.UpstreamRateLimitedException;
+import com.google.musicanalysis.api.UpstreamUnavailableException;
 import com.google.musicanalysis.cache.*;
 import com.google.musicanalysis.types.*;
+import com.google.musicanalysis.util.Metrics;
 import java.io.IOException;
-import java.net.MalformedURLException;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.HashMap;
-import java.util.Map;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import javax.servlet.ServletException;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import java.util.regex.Matcher; 
-import java.util.regex.Pattern; 
 import java.time.Instant;
 
 @WebServlet("/api/analysis")
 public class AnalysisServlet extends HttpServlet {
+  private static final long ONE_DAY_IN_SECONDS = 86400;
+  private static final long MIN_FRESHNESS_TO_CACHE = 10 * ONE_DAY_IN_SECONDS;
+  private static final long MIN_COMMENT_ACTIVITY_TO_CACHE = 20;
+  // Not in HttpServletResponse, which predates it
+  private static final int SC_TOO_MANY_REQUESTS = 429;
+  // How long a request waits for an analysis, including one started by another request
+  static final long ANALYSIS_TIMEOUT_SECONDS =
+      Long.parseLong(System.getenv().getOrDefault("ANALYSIS_TIMEOUT_SECONDS", "30"));
+
+  // Concurrent misses for the same video share one analysis
+  private static final SingleFlight<String, AnalysisResult> inFlightAnalyses =
+      new SingleFlight<>();
+  // The stage events of each running analysis, for event streams that join it
+  private static final ConcurrentHashMap<String, AnalysisEvents> runningEvents =
+      new ConcurrentHashMap<>();
+
+  static {
+    Metrics.register("analysis.singleFlight", inFlightAnalyses::getStats);
+    AnalysisCache.setRefresher(AnalysisServlet::refreshAnalysis);
+  }
+
+  /** A finished analysis, along with the response it was cached as and how long it took */
+  static final class AnalysisResult {
+    final VideoAnalysis analysis;
+    // Null if the analysis wasn't eligible for the cache
+    final CachedResponse response;
+    final StageTimings timings;
+
+    AnalysisResult(VideoAnalysis analysis, CachedResponse response, StageTimings timings) {
+      this.analysis = analysis;
+      this.response = response;
+      this.timings = timings;
+    }
+  }
+
+  @Override
+  public void destroy() {
+    AnalysisPipeline.shutdown();
+  }
+
   @Override
   protected void doGet(HttpServletRequest req, HttpServletResponse res)
       throws ServletException, IOException {
-    long ONE_DAY_IN_SECONDS = 86400;
-    long MIN_FRESHNESS_TO_CACHE = 10 * ONE_DAY_IN_SECONDS;
-    long MIN_COMMENT_ACTIVITY_TO_CACHE = 20;
-
     String userInput = req.getParameter("name");
-
-    // Use like this: {url_parameter, value}
-    HashMap<String, String> videoArgs = new HashMap<>();
-    HashMap<String, String> commentArgs = new HashMap<>();
-    HashMap<String, String> nameArgs = new HashMap<>();
-
-    String videoId = userInput; // assume user enters id
-
-    commentArgs.put("part", "snippet");
-    commentArgs.put("videoId", userInput);
-    String commentsJson;
-    
-    // Runs input through the cache first
-    CacheValue cachedData = AnalysisCache.retrieve(userInput);
-    if (cachedData != null) {
-      String json = convertToJsonUsingGson(cachedData.responseData);
-      res.setContentType("application/json;");
-      res.getWriter().println(json);
+    if (userInput == null || userInput.isBlank()) {
+      res.sendError(HttpServletResponse.SC_BAD_REQUEST, "Expected a name parameter");
       return;
     }
-
-    // Test if its a youtube id from the beginning
-    if (userInput.length() == 11 && !thereIsWhiteSpace(userInput)) {
-        try {
-            commentsJson = new YoutubeRequest("commentThreads", commentArgs).getResult();
-        } catch (IOException err) {
-            videoId = getFirstVideoFromSearch(userInput);
-            commentArgs.replace("videoId", videoId);
-            commentsJson = new YoutubeRequest("commentThreads", commentArgs).getResult();
-        }
-    } else {
-        videoId = getFirstVideoFromSearch(userInput);
-        commentArgs.replace("videoId", videoId);
-        commentsJson = new YoutubeRequest("commentThreads", commentArgs).getResult();
+    boolean eventStream = wantsEventStream(req.getHeader("Accept"));
+
+    // The cache is keyed by video id, so different searches for the same video share an entry.
+    // It is checked before the input is resolved, so a cached analysis is served without calling
+    // YouTube, even while YouTube is unavailable.
+    String knownVideoId = AnalysisPipeline.knownVideoId(userInput);
+    CachedResponse cachedResponse =
+        knownVideoId == null ? null : AnalysisCache.retrieveResponse(knownVideoId);
+
+    String videoId = knownVideoId;
+    if (cachedResponse == null) {
+      try {
+        videoId = AnalysisPipeline.resolveVideoId(userInput);
+      } catch (UpstreamUnavailableException e) {
+        sendUnavailable(res, e);
+        return;
+      }
+      // An id-like input can turn out to be a search for another video
+      if (!videoId.equals(knownVideoId)) {
+        cachedResponse = AnalysisCache.retrieveResponse(videoId);
+      }
     }
 
-    ArrayList<Comment> commentArray = retrieveComments(commentsJson);
-    String cumulativeComments = convertToString(commentArray);
-
-    nameArgs.put("part", "snippet");
-    nameArgs.put("id", videoId);
-    String nameJson = new YoutubeRequest("videos", nameArgs).getResult();
-    VideoInfo videoInfo = getVideoInfo(nameJson);
+    if (cachedResponse != null) {
+      if (eventStream) {
+        streamCachedResponse(req, res, cachedResponse);
+      } else {
+        writeResponse(req, res, cachedResponse);
+      }
+      return;
+    }
+    if (eventStream) {
+      streamAnalysis(res, videoId);
+      return;
+    }
 
-    HashMap<String, String> perspectiveMap = analyzeWithPerspective(cumulativeComments);
-    
-    HashMap<NLPResult, Integer> unweightedNLPMap = new HashMap<>();
-    for (CommentLikes commentAndLikes: commentArray) {
-        unweightedNLPMap.put(analyzeWithNLP(commentAndLikes.comment), commentAndLikes.likes);
+    AnalysisResult result;
+    try {
+      result = inFlightAnalyses.await(analyze(videoId), ANALYSIS_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    } catch (TimeoutException e) {
+      res.setStatus(HttpServletResponse.SC_GATEWAY_TIMEOUT);
+      return;
+    } catch (UpstreamUnavailableException e) {
+      sendUnavailable(res, e);
+      return;
+    }
+    // The stages of the analysis this response is from, even if another request started it
+    if (!result.timings.getDurations().isEmpty()) {
+      res.setHeader("Server-Timing", result.timings.toServerTimingHeader());
     }
-    NLPResult weightedSentiment = createWeightedSentiment(unweightedNLPMap);
 
-    VideoAnalysis servletResults =
-        new VideoAnalysis(perspectiveMap, commentsSentiment, commentArray, videoId, videoInfo);
-    
-    // Only add to the cache if the video is more than 10 days old,
-    // and there are at least 20 comments
-    long now = Instant.now().getEpochSecond();
-    long instantVideoWasPublished = videoInfo.publishedDate.getEpochSecond();
-    if (now - instantVideoWasPublished > MIN_FRESHNESS_TO_CACHE 
-          && commentArray.size() == MIN_COMMENT_ACTIVITY_TO_CACHE) {
-        AnalysisCache.add(userInput, servletResults);
+    if (result.response != null) {
+      writeResponse(req, res, result.response);
+      return;
     }
 
-    String json = convertToJsonUsingGson(servletResults);
-    res.setContentType("application/json;");
-    res.getWriter().println(json);
+    // Not eligible for the cache, so clients have to check back every time
+    res.setHeader("Cache-Control", "no-cache");
+    JsonResponses.write(req, res, JsonAdapters.VIDEO_ANALYSIS, result.analysis);
   }
 
-  /** @param arr the array that will be converted to json */
-  private String convertToJsonUsingGson(VideoAnalysis group) {
-    Gson gson = new Gson();
-    String json = gson.toJson(group);
-    return json;
+  /**
+   * Sends the analysis as server-sent events while it runs, see {@link AnalysisEventStream}. Used
+   * when the client asks for an event stream, like EventSource does. A request that joins an
+   * analysis another request started gets the events of its stages too.
+   */
+  private void streamAnalysis(HttpServletResponse res, String videoId) throws IOException {
+    AnalysisEventStream stream = new AnalysisEventStream();
+    stream.start(res);
+
+    CompletableFuture<AnalysisResult> analysis = analyze(videoId, stream);
+    analysis.whenComplete((result, error) -> stream.finish());
+    stream.sendUntilDone(ANALYSIS_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+
+    AnalysisResult result;
+    try {
+      // Done by now, unless it timed out
+      result = inFlightAnalyses.await(analysis, 0, TimeUnit.SECONDS);
+    } catch (TimeoutException | IOException e) {
+      String message =
+          e instanceof TimeoutException ? "The analysis timed out" : "The analysis failed";
+      stream.send("error", out -> out.beginObject().name("message").value(message).endObject());
+      return;
+    }
+    if (result.response != null) {
+      sendJson(stream, result.response);
+    } else {
+      stream.send("analysis", out -> JsonAdapters.VIDEO_ANALYSIS.write(out, result.analysis));
+    }
   }
 
   /**
-   * Helper function that gets the first video from Youtube search request
-   *
-   * @param videoParam the video parameter to put in the url
-   * @return the video id as string
+   * Responds to a request that needed an upstream API which turned the call away. Running out of
+   * quota is a 429 that says when to come back, anything else a 503.
    */
-  private String getFirstVideoFromSearch(String videoParam) throws MalformedURLException, IOException {
-      HashMap<String, String> videoArgs = new HashMap<>();
-      videoArgs.put("q", videoParam);
-      videoArgs.put("type", "video");
-      String videoIdJson = new YoutubeRequest("search", videoArgs).getResult();
-      return getVideoId(videoIdJson);
+  private static void sendUnavailable(HttpServletResponse res, UpstreamUnavailableException e)
+      throws IOException {
+    if (e instanceof UpstreamRateLimitedException) {
+      res.setHeader(
+          "Retry-After",
+          String.valueOf(((UpstreamRateLimitedException) e).getRetryAfterSeconds()));
+      res.sendError(SC_TOO_MANY_REQUESTS, e.getMessage());
+    } else {
+      res.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, e.getMessage());
+    }
   }
 
   /**
-   * Analyzes the given string with the Natural Language API.
-   *
-   * @param text The text that will be analyzed by the Natural Language API.
-   * @return A NLPResult object with the results
+   * Sends a cached analysis as the only event of an event stream. Has the same caching headers as
+   * the JSON response, and responds with 304 Not Modified if the client already has the analysis.
    */
-  private NLPResult analyzeWithNLP(String text) throws IOException {
-    String response = new SentimentRequest(text).getResponse();
-
-    // Extracting the sentiment
-    JsonElement jElement = JsonParser.parseString(response);
-    JsonObject jObject = jElement.getAsJsonObject();
-    JsonObject sentimentObject = jObject.getAsJsonObject("documentSentiment");
+  private void streamCachedResponse(
+      HttpServletRequest req, HttpServletResponse res, CachedResponse response)
+      throws IOException {
+    if (setCachingHeaders(req, res, response, response.getEventStreamEtag())) {
+      return;
+    }
+    AnalysisEventStream stream = new AnalysisEventStream();
+    stream.start(res);
+    sendJson(stream, response);
+  }
 
-    NLPResult nlpResults =
-        new NLPResult(
-            Double.valueOf(sentimentObject.get("magnitude").toString()),
-            Double.valueOf(sentimentObject.get("score").toString()));
+  /** Sends the analysis event from the JSON that was serialized for the cache */
+  private static void sendJson(AnalysisEventStream stream, CachedResponse response)
+      throws IOException {
+    // Compact JSON, which fits in one data line
+    stream.send(
+        "analysis", out -> out.jsonValue(new String(response.getJson(), StandardCharsets.UTF_8)));
+  }
 
-    return nlpResults;
+  /** @return whether an Accept header asks for server-sent events */
+  private static boolean wantsEventStream(String accept) {
+    return accept != null && accept.contains("text/event-stream");
   }
 
   /**
-   * Takes the given map of sentiments and creates a common weighted 
-   * sentiment according to the number of likes each comment receives
-   * out of the sum of the likes of the comments
-   *
-   * @param unweightedNLPMap the unweighted map of <like, nlp> pairs
-   * @return A weighted NLPResult object
+   * Writes a serialized analysis, gzipped if the client accepts it. Responds with 304 Not Modified
+   * if the client already has the same analysis.
    */
-  private NLPResult createWeightedSentiment(HashMap<NLPResult, Integer> unweightedNLPMap) {
-      double totalLikes = 0;
-
-      for (Map.Entry<NLPResult, Integer> likesAndNLPResult : unweightedNLPMap.entrySet()) {
-          totalLikes += (double) likesAndNLPResult.getValue();
-      }
-      
-      if (totalLikes == 0) {
-          // If there are no likes on any comment, we they all need
-          // to be weighted equally. There's not enough data to confidently
-          // determine a communities reaction.
-          // This will rarely hit.
-          return new NLPResult(0, 0);
-      }
-
-      double weightedMagnitude = 0;
-      double weightedScore = 0;
-
-      for (Map.Entry<NLPResult, Integer> likesAndNLPResult : unweightedNLPMap.entrySet()) {
-          double eachCommentLikeCount = likesAndNLPResult.getValue(); 
-          // If a comment has no likes, this implementation would
-          // not count it's magnitude at all. This seems like a potential
-          // problem, however, if there are no likes on the comments,
-          // there hasn't been enough community interaction to determine
-          // a sentiment, so the tool would return "MIXED".
-          // This situation would rarely be the case, since the relevance
-          // feature selects the most releveant, popular comments anyway.
-          weightedMagnitude += (eachCommentLikeCount / totalLikes) * likesAndNLPResult.getKey().magnitude;
-          weightedScore += (eachCommentLikeCount / totalLikes) * likesAndNLPResult.getKey().score;
-      }
+  private void writeResponse(
+      HttpServletRequest req, HttpServletResponse res, CachedResponse response)
+      throws IOException {
+    boolean gzip = JsonResponses.acceptsGzip(req.getHeader("Accept-Encoding"));
+    if (setCachingHeaders(
+        req, res, response, gzip ? response.getGzippedEtag() : response.getEtag())) {
+      return;
+    }
 
-      return new NLPResult(weightedMagnitude, weightedScore);
+    byte[] body;
+    if (gzip) {
+      res.setHeader("Content-Encoding", "gzip");
+      body = response.getGzippedJson();
+    } else {
+      body = response.getJson();
+    }
+    res.setContentType("application/json; charset=UTF-8");
+    res.setContentLength(body.length);
+    res.getOutputStream().write(body);
   }
 
   /**
-   * Analyzes the given string with the Perspective API.
+   * Sets the ETag of the representation being sent, and lets clients cache it until the cached
+   * analysis goes stale. Responds with 304 Not Modified if the client already has the analysis.
    *
-   * @param text The text that will be analyzed by the Perspective API.
-   * @return A hashmap with the results
+   * @return whether the 304 was sent, in which case there is nothing left to write
    */
-  private HashMap<String, String> analyzeWithPerspective(String text) throws IOException {
-
-    ArrayList<String> attributes =
-        new ArrayList<>(
-            Arrays.asList(
-                "TOXICITY",
-                "IDENTITY_ATTACK",
-                "INSULT",
-                "PROFANITY",
-                "THREAT",
-                "SEXUALLY_EXPLICIT",
-                "FLIRTATION"));
-
-    // Calling the API
-    PerspectiveRequest perspectiveRequest = new PerspectiveRequest(text, attributes);
-    String response = perspectiveRequest.getResponse();
-
-    // Extracting the results
-    JsonElement jElement = JsonParser.parseString(response);
-    JsonObject jObject = jElement.getAsJsonObject();
-    JsonObject attributeObject = jObject.getAsJsonObject("attributeScores");
-
-    HashMap<String, String> perspectiveResults = new HashMap<String, String>();
-    for (String el : attributes) {
-      perspectiveResults.put(
-          el,
-          attributeObject
-              .getAsJsonObject(el)
-              .getAsJsonObject("summaryScore")
-              .get("value")
-              .toString());
+  private static boolean setCachingHeaders(
+      HttpServletRequest req, HttpServletResponse res, CachedResponse response, String etag) {
+    res.setHeader("ETag", etag);
+    // The same url is also served as an event stream, and gzipped
+    res.setHeader("Vary", "Accept, Accept-Encoding");
+    Instant expiresAt = response.getExpiresAt();
+    if (expiresAt == null) {
+      res.setHeader("Cache-Control", "no-cache");
+    } else {
+      long maxAge = Math.max(0, expiresAt.getEpochSecond() - Instant.now().getEpochSecond());
+      res.setHeader("Cache-Control", "public, max-age=" + maxAge);
     }
 
-    return perspectiveResults;
-  }
-
-  private VideoInfo getVideoInfo(String response) {
-
-    // Accessing the items JSON Array
-    JsonElement jElement = JsonParser.parseString(response);
-    JsonObject jObject = jElement.getAsJsonObject();
-    JsonArray itemsArray = jObject.getAsJsonArray("items");
-    JsonElement firstVideo = itemsArray.get(0);
-
-    // Grabbing the name and channel
-    JsonObject object = firstVideo.getAsJsonObject();
-    JsonObject videoData = object.getAsJsonObject("snippet");
-    JsonElement videoName = videoData.get("title");
-    JsonElement channelName = videoData.get("channelTitle");
-    JsonElement publishedTime = videoData.get("publishedAt");
-
-    return new VideoInfo(
-        videoName.toString().replace("\"", ""), 
-        channelName.toString().replace("\"", ""),
-        publishedTime.toString());
+    if (etagMatches(req.getHeader("If-None-Match"), response)) {
+      res.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+      return true;
+    }
+    return false;
   }
 
-  private String getVideoId(String response) {
-    ArrayList<String> searchResults = new ArrayList<>();
-
-    // Accessing the items JSON Array
-    JsonElement jElement = JsonParser.parseString(response);
-    JsonObject jObject = jElement.getAsJsonObject();
-    JsonArray itemsArray = jObject.getAsJsonArray("items");
-
-    for (JsonElement el : itemsArray) {
-      // Grabbing each item and adding to a result array
-      JsonObject object = el.getAsJsonObject();
-      JsonObject idObject = object.getAsJsonObject("id");
-      JsonElement videoId = idObject.get("videoId");
-
-      if (videoId != null) {
-        searchResults.add(videoId.toString().replace("\"", ""));
+  /**
+   * @return whether an If-None-Match header lists any ETag of the response. A client that changed
+   *     its Accept-Encoding or Accept still has the same content.
+   */
+  private static boolean etagMatches(String ifNoneMatch, CachedResponse response) {
+    if (ifNoneMatch == null) {
+      return false;
+    }
+    for (String candidate : ifNoneMatch.split(",")) {
+      candidate = candidate.trim();
+      // Weak comparison is what If-None-Match asks for
+      if (candidate.startsWith("W/")) {
+        candidate = candidate.substring(2);
+      }
+      if (candidate.equals("*")
+          || candidate.equals(response.getEtag())
+          || candidate.equals(response.getGzippedEtag())
+          || candidate.equals(response.getEventStreamEtag())) {
+        return true;
       }
     }
-
-    // Only returning the first for now, potential to change if I optimize search results.
-    return searchResults.get(0);
+    return false;
   }
 
   /**
-   * Parses the comment JSON string and retrieves the comments.
-   *
-   * @param response The JSON string to be parsed.
-   * @return An ArrayList with each comment
+   * Runs the analysis of a video, or joins one that is already running, and caches the result.
+   * Comments are fetched first, then the video info, Perspective and Natural Language stages all
+   * run at the same time.
    */
-  private ArrayList<Comment> retrieveComments(String response) {
-    ArrayList<Comment> commentList = new ArrayList<>();
-
-    JsonElement jElement = JsonParser.parseString(response);
-    JsonObject jObject = jElement.getAsJsonObject();
-    JsonArray itemsArray = jObject.getAsJsonArray("items");
-
-    for (JsonElement el : itemsArray) {
-      String topComment =
-          el.getAsJsonObject()
-              .getAsJsonObject("snippet")
-              .getAsJsonObject("topLevelComment")
-              .getAsJsonObject("snippet")
-              .get("textOriginal")
-              .toString();
-
-      Integer likes =
-          el.getAsJsonObject()
-              .getAsJsonObject("snippet")
-              .getAsJsonObject("topLevelComment")
-              .getAsJsonObject("snippet")
-              .get("likeCount")
-              .getAsInt();
-
-      String filteredComment = filterComment(topComment);
-      Comment comment = new Comment(filteredComment, likes);
-      commentList.add(comment);
-    }
-
-    return commentList;
+  static CompletableFuture<AnalysisResult> analyze(String videoId) {
+    return analyze(videoId, null);
   }
 
   /**
-   * Condenses array of comments into one large string, formatting it along the way and separating
-   * unpunctuated sentences with a period
+   * Like {@link #analyze(String)}, and passes the results of the analysis's stages on to a
+   * listener as they finish, including the ones that finished before this call.
    *
-   * @param comments The array to be condensed.
-   * @return A properly formatted String
+   * @param listener gets the results of the stages, or null
    */
-  private String convertToString(ArrayList<Comment> comments) {
-    StringBuilder res = new StringBuilder();
-
-    for (Comment comment : comments) {
-      String commentText = comment.text;
-
-      commentText = commentText.replace("\"", "");
-      // Make sure each comment is treated as its own sentence
-      // Not sure char datatype works with regex so used String
-      String lastCharacter = commentText.substring(commentText.length() - 1);
-      if (!lastCharacter.matches("\\.|!|\\?")) {
-        commentText += ". ";
-      } else {
-        commentText += " ";
-      }
-      res.append(commentText);
+  private static CompletableFuture<AnalysisResult> analyze(
+      String videoId, AnalysisPipeline.Listener listener) {
+    // Registered before the flight, so that everyone who joins it finds the same events
+    AnalysisEvents events = runningEvents.computeIfAbsent(videoId, key -> new AnalysisEvents());
+    if (listener != null) {
+      events.subscribe(listener);
     }
 
-    return res.toString();
+    CompletableFuture<AnalysisResult> analysis =
+        inFlightAnalyses.run(
+            videoId,
+            () -> {
+              AnalysisPipeline pipeline = new AnalysisPipeline(videoId, events);
+              return pipeline
+                  .runAsync()
+                  .thenApply(
+                      servletResults ->
+                          new AnalysisResult(
+                              servletResults,
+                              cacheIfEligible(servletResults),
+                              pipeline.getTimings()));
+            });
+    // Only removes the events this call used, a later analysis of the video has its own
+    analysis.whenComplete((result, error) -> runningEvents.remove(videoId, events));
+    return analysis;
   }
 
   /**
-   * Filters out a comment string so that it's readable and doesn't break the frontend.
-   *
-   * @param comment The comment to be filtered.
-   * @return A properly formatted comment
+   * Waits for an analysis returned by {@link #analyze}. Timing out only stops this caller from
+   * waiting.
    */
-  private String filterComment(String comment) {
-    String filteredComment = comment;
-
-    // Removes 4683 different emojis and symbols so that NL and Perspective don't crash
-    // \u00a9 : copyright character
-    // \u00ae : registered sign
-    // \u2000-\u3300 : superscripts and subscripts, and other symbols we can ignore.
-    //                         
-    // 
-    // \ud83c,d,e [\ud000-\udfff] : The emoji ranges
-    filteredComment = filteredComment.replaceAll("(\u00a9|\u00ae|[\u2000-\u3300]|\ud83c[\ud000-\udfff]|\ud83d[\ud000-\udfff]|\ud83e[\ud000-\udfff])", "");
-    
-    // changes the newlines to a readable format by the front end
-    filteredComment = String.join("\n", filteredComment.split("\\\\n"));
-    
-    // Trims the quotes off the edges
-    filteredComment = filteredComment.substring(1, filteredComment.length() - 1);
-    
-    // Removes embedded escaped quotes so that NL and Perspective don't mess up
-    filteredComment = filteredComment.replace("\\\"", "");
-
-    return filteredComment;
+  static VideoAnalysis awaitAnalysis(
+      CompletableFuture<AnalysisResult> analysis, long timeout, TimeUnit unit)
+      throws IOException, TimeoutException {
+    return inFlightAnalyses.await(analysis, timeout, unit).analysis;
   }
+
+  /** Recomputes a stale cached analysis, called by the cache in the background */
+  private static void refreshAnalysis(String videoId) throws IOException {
+    try {
+      inFlightAnalyses.await(analyze(videoId), ANALYSIS_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    } catch (TimeoutException e) {
+      throw new IOException("Timed out refreshing the analysis of " + videoId, e);
+    }
+  }
+
   /**
-   * Generic function to check for whitespace in a string
-   * 
-   * @param string The string to be searched
-   * @return whether or not there's any whitespace
+   * Only add to the cache if the video is more than 10 days old,
+   * and at least 20 comments were analyzed. Partial analyses are never cached.
+   *
+   * @return the response the analysis was cached as, or null if it wasn't cached
    */
-  private boolean thereIsWhiteSpace(String string) {
-    Pattern pattern = Pattern.compile("\\s");
-    Matcher matcher = pattern.matcher(string);
-    return matcher.find();
+  private static CachedResponse cacheIfEligible(VideoAnalysis servletResults) {
+    if (servletResults.isPartial()) {
+      return null;
+    }
+    long now = Instant.now().getEpochSecond();
+    long instantVideoWasPublished = servletResults.videoInfo.publishedDate.getEpochSecond();
+    if (now - instantVideoWasPublished > MIN_FRESHNESS_TO_CACHE
+          && servletResults.commentArray.size() >= MIN_COMMENT_ACTIVITY_TO_CACHE) {
+        return AnalysisCache.add(servletResults.videoId, servletResults);
+    }
+    return null;
   }
 }
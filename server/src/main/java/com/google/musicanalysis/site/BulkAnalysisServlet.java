@@ -0,0 +1,318 @@
+package com.google.musicanalysis.site;
+
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import com.google.musicanalysis.analysis.AnalysisPipeline;
+import com.google.musicanalysis.cache.AnalysisCache;
+import com.google.musicanalysis.types.CacheValue;
+import com.google.musicanalysis.types.JsonAdapters;
+import com.google.musicanalysis.types.VideoAnalysis;
+import com.google.musicanalysis.util.Metrics;
+import com.google.musicanalysis.util.NamedThreadFactory;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.servlet.ServletException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Servlet analyzes many videos in one request, such as the videos of a playlist, and returns each
+ * analysis along with their average sentiment and Perspective scores.
+ *
+ * <p>The request body is a JSON object like {"videoIds": ["id1", "id2"]}. Cached analyses are
+ * returned as they are. The information of the other videos is looked up in batches, and their
+ * analyses run on a worker pool shared by every bulk request, so bulk requests can't take over the
+ * stages that single analyses run on.
+ */
+@WebServlet("/api/analysis/bulk")
+public class BulkAnalysisServlet extends HttpServlet {
+  private static final Logger LOGGER = Logger.getLogger(BulkAnalysisServlet.class.getName());
+
+  private static final int MAX_VIDEOS =
+      Integer.parseInt(System.getenv().getOrDefault("BULK_ANALYSIS_MAX_VIDEOS", "50"));
+  // Analyses that run at once, across every bulk request
+  private static final int WORKERS =
+      Integer.parseInt(System.getenv().getOrDefault("BULK_ANALYSIS_WORKERS", "4"));
+  // Analyses that may wait for a worker before new ones are turned away
+  private static final int QUEUE_CAPACITY =
+      Integer.parseInt(System.getenv().getOrDefault("BULK_ANALYSIS_QUEUE", "200"));
+
+  private static final ThreadPoolExecutor WORKER_POOL =
+      new ThreadPoolExecutor(
+          WORKERS,
+          WORKERS,
+          0,
+          TimeUnit.MILLISECONDS,
+          new ArrayBlockingQueue<>(QUEUE_CAPACITY),
+          new NamedThreadFactory("bulk-analysis"));
+
+  private static final AtomicLong requests = new AtomicLong();
+  private static final AtomicLong videosCached = new AtomicLong();
+  private static final AtomicLong videosAnalyzed = new AtomicLong();
+  private static final AtomicLong videosRejected = new AtomicLong();
+
+  static {
+    Metrics.register(
+        "analysis.bulk",
+        () -> {
+          Map<String, Object> stats = new LinkedHashMap<>();
+          stats.put("requests", requests.get());
+          stats.put("videosCached", videosCached.get());
+          stats.put("videosAnalyzed", videosAnalyzed.get());
+          stats.put("videosRejected", videosRejected.get());
+          stats.put("activeWorkers", WORKER_POOL.getActiveCount());
+          stats.put("queued", WORKER_POOL.getQueue().size());
+          return stats;
+        });
+  }
+
+  /** How the analysis of one video of the request went */
+  private enum Status {
+    CACHED,
+    ANALYZED,
+    FAILED,
+    TIMED_OUT,
+    REJECTED
+  }
+
+  /** The outcome for one video of the request */
+  private static class VideoResult {
+    final String videoId;
+    Status status;
+    VideoAnalysis analysis;
+
+    VideoResult(String videoId) {
+      this.videoId = videoId;
+    }
+  }
+
+  @Override
+  public void destroy() {
+    WORKER_POOL.shutdownNow();
+  }
+
+  @Override
+  protected void doPost(HttpServletRequest req, HttpServletResponse res)
+      throws ServletException, IOException {
+    List<String> videoIds;
+    try {
+      videoIds = readVideoIds(new JsonReader(req.getReader()));
+    } catch (IOException | IllegalStateException e) {
+      res.sendError(HttpServletResponse.SC_BAD_REQUEST, "Expected {\"videoIds\": [...]}");
+      return;
+    }
+    if (videoIds.isEmpty() || videoIds.size() > MAX_VIDEOS) {
+      res.sendError(
+          HttpServletResponse.SC_BAD_REQUEST, "Expected 1 to " + MAX_VIDEOS + " video ids");
+      return;
+    }
+    for (String videoId : videoIds) {
+      if (!AnalysisPipeline.looksLikeVideoId(videoId)) {
+        res.sendError(HttpServletResponse.SC_BAD_REQUEST, "Not a video id: " + videoId);
+        return;
+      }
+    }
+    requests.incrementAndGet();
+
+    long deadline =
+        System.nanoTime() + TimeUnit.SECONDS.toNanos(AnalysisServlet.ANALYSIS_TIMEOUT_SECONDS);
+    ArrayList<VideoResult> results = new ArrayList<>();
+    ArrayList<String> uncached = new ArrayList<>();
+    for (String videoId : videoIds) {
+      VideoResult result = new VideoResult(videoId);
+      CacheValue cached = AnalysisCache.retrieve(videoId);
+      if (cached != null) {
+        result.status = Status.CACHED;
+        result.analysis = cached.responseData;
+        videosCached.incrementAndGet();
+      } else {
+        uncached.add(videoId);
+      }
+      results.add(result);
+    }
+
+    // Looked up before the analyses start, so that their video info stages find them
+    AnalysisPipeline.prefetchVideoInfo(uncached);
+
+    Map<VideoResult, Future<VideoAnalysis>> running = new LinkedHashMap<>();
+    for (VideoResult result : results) {
+      if (result.status != null) {
+        continue;
+      }
+      try {
+        running.put(result, WORKER_POOL.submit(() -> analyze(result.videoId, deadline)));
+      } catch (RejectedExecutionException e) {
+        result.status = Status.REJECTED;
+        videosRejected.incrementAndGet();
+      }
+    }
+
+    for (Map.Entry<VideoResult, Future<VideoAnalysis>> entry : running.entrySet()) {
+      VideoResult result = entry.getKey();
+      Future<VideoAnalysis> analysis = entry.getValue();
+      try {
+        result.analysis = analysis.get(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+        result.status = Status.ANALYZED;
+        videosAnalyzed.incrementAndGet();
+      } catch (TimeoutException | CancellationException e) {
+        // A queued analysis won't start, a running one goes on and is cached for next time
+        analysis.cancel(true);
+        result.status = Status.TIMED_OUT;
+      } catch (ExecutionException e) {
+        LOGGER.log(Level.WARNING, e.getCause(), () -> "Could not analyze " + result.videoId);
+        result.status =
+            e.getCause() instanceof TimeoutException ? Status.TIMED_OUT : Status.FAILED;
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while waiting for analyses", e);
+      }
+    }
+
+    res.setHeader("Cache-Control", "no-cache");
+    JsonResponses.write(req, res, RESPONSE_ADAPTER, results);
+  }
+
+  /** Runs on a worker, which it holds until the analysis is done or the deadline has passed */
+  private static VideoAnalysis analyze(String videoId, long deadline)
+      throws IOException, TimeoutException {
+    return AnalysisServlet.awaitAnalysis(
+        AnalysisServlet.analyze(videoId),
+        deadline - System.nanoTime(),
+        TimeUnit.NANOSECONDS);
+  }
+
+  /** @return the distinct video ids of the request body, in the order they were given */
+  private static List<String> readVideoIds(JsonReader reader) throws IOException {
+    LinkedHashSet<String> videoIds = new LinkedHashSet<>();
+    reader.beginObject();
+    while (reader.hasNext()) {
+      if (reader.nextName().equals("videoIds") && reader.peek() == JsonToken.BEGIN_ARRAY) {
+        reader.beginArray();
+        while (reader.hasNext()) {
+          videoIds.add(reader.nextString());
+          if (videoIds.size() > MAX_VIDEOS) {
+            // Too many already, no need to read the rest
+            return new ArrayList<>(videoIds);
+          }
+        }
+        reader.endArray();
+      } else {
+        reader.skipValue();
+      }
+    }
+    reader.endObject();
+    return new ArrayList<>(videoIds);
+  }
+
+  /**
+   * Writes the result of every video, then the aggregate of the analyses:
+   *
+   * <pre>
+   * {"results": [{"videoId": ..., "status": "cached", "analysis": {...}}, ...],
+   *  "aggregate": {"videos": 3, "analyses": 2, "magnitudeAndScore": {...},
+   *                "perspectiveMap": {"TOXICITY": 0.1, ...}}}
+   * </pre>
+   *
+   * The aggregate sentiment and Perspective scores are the averages over the videos whose analysis
+   * has them, each video counting the same.
+   */
+  private static final TypeAdapter<List<VideoResult>> RESPONSE_ADAPTER =
+      new TypeAdapter<List<VideoResult>>() {
+        @Override
+        public void write(JsonWriter out, List<VideoResult> results) throws IOException {
+          int analyses = 0;
+          int sentiments = 0;
+          double magnitude = 0;
+          double score = 0;
+          TreeMap<String, double[]> perspective = new TreeMap<>();
+
+          out.beginObject();
+          out.name("results").beginArray();
+          for (VideoResult result : results) {
+            out.beginObject();
+            out.name("videoId").value(result.videoId);
+            out.name("status").value(result.status.name().toLowerCase(Locale.ROOT));
+            if (result.analysis != null) {
+              out.name("analysis");
+              JsonAdapters.VIDEO_ANALYSIS.write(out, result.analysis);
+
+              analyses++;
+              // A partial analysis may lack either of them
+              if (result.analysis.magnitudeAndScore != null) {
+                sentiments++;
+                magnitude += result.analysis.magnitudeAndScore.magnitude;
+                score += result.analysis.magnitudeAndScore.score;
+              }
+              if (result.analysis.perspectiveMap != null) {
+                addScores(perspective, result.analysis.perspectiveMap);
+              }
+            }
+            out.endObject();
+          }
+          out.endArray();
+
+          out.name("aggregate").beginObject();
+          out.name("videos").value(results.size());
+          out.name("analyses").value(analyses);
+          if (sentiments > 0) {
+            out.name("magnitudeAndScore").beginObject();
+            out.name("magnitude").value(magnitude / sentiments);
+            out.name("score").value(score / sentiments);
+            out.endObject();
+          }
+          if (analyses > 0) {
+            out.name("perspectiveMap").beginObject();
+            for (Map.Entry<String, double[]> attribute : perspective.entrySet()) {
+              double[] sumAndCount = attribute.getValue();
+              out.name(attribute.getKey()).value(sumAndCount[0] / sumAndCount[1]);
+            }
+            out.endObject();
+          }
+          out.endObject();
+          out.endObject();
+        }
+
+        @Override
+        public List<VideoResult> read(JsonReader in) {
+          throw new UnsupportedOperationException("Results are only written");
+        }
+      };
+
+  /** Adds the Perspective scores of one analysis to the sum and count of each attribute */
+  private static void addScores(TreeMap<String, double[]> sums, Map<String, String> scores) {
+    for (Map.Entry<String, String> attribute : scores.entrySet()) {
+      if (attribute.getValue() == null) {
+        continue;
+      }
+      try {
+        double value = Double.parseDouble(attribute.getValue());
+        double[] sumAndCount = sums.computeIfAbsent(attribute.getKey(), key -> new double[2]);
+        sumAndCount[0] += value;
+        sumAndCount[1]++;
+      } catch (NumberFormatException e) {
+        // Not a score, leave it out of the average
+      }
+    }
+  }
+}
@@ -0,0 +1,83 @@
+package com.google.musicanalysis.site;
+
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonWriter;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/** Writes JSON responses straight into the servlet's output, gzipped if the client accepts it */
+final class JsonResponses {
+  private static final int BUFFER_BYTES = 8192;
+  private static final int WRITER_BUFFER_CHARS = 2048;
+
+  private JsonResponses() {}
+
+  /**
+   * Streams a value as the JSON body of the response.
+   *
+   * @param req the request, whose Accept-Encoding header decides whether the body is gzipped
+   * @param res the response to write to
+   * @param adapter writes the value
+   * @param value the value to write
+   */
+  static <T> void write(
+      HttpServletRequest req, HttpServletResponse res, TypeAdapter<T> adapter, T value)
+      throws IOException {
+    res.setContentType("application/json; charset=UTF-8");
+    res.setHeader("Vary", "Accept-Encoding");
+
+    OutputStream body = res.getOutputStream();
+    GZIPOutputStream gzip = null;
+    if (acceptsGzip(req.getHeader("Accept-Encoding"))) {
+      res.setHeader("Content-Encoding", "gzip");
+      gzip = new GZIPOutputStream(body, BUFFER_BYTES);
+      body = gzip;
+    }
+
+    // JsonWriter writes many short strings, which the encoder would copy one at a time
+    JsonWriter writer =
+        new JsonWriter(
+            new BufferedWriter(
+                new OutputStreamWriter(body, StandardCharsets.UTF_8), WRITER_BUFFER_CHARS));
+    // Escapes HTML characters like Gson does by default
+    writer.setHtmlSafe(true);
+    adapter.write(writer, value);
+    writer.flush();
+    if (gzip != null) {
+      gzip.finish();
+    }
+  }
+
+  /** @return whether an Accept-Encoding header allows gzip */
+  static boolean acceptsGzip(String acceptEncoding) {
+    if (acceptEncoding == null) {
+      return false;
+    }
+    for (String coding : acceptEncoding.split(",")) {
+      String[] parts = coding.trim().split(";");
+      String name = parts[0].trim();
+      if (!name.equalsIgnoreCase("gzip") && !name.equals("*")) {
+        continue;
+      }
+      // gzip;q=0 means the client refuses it
+      for (int i = 1; i < parts.length; i++) {
+        String parameter = parts[i].trim();
+        if (parameter.startsWith("q=")) {
+          try {
+            return Double.parseDouble(parameter.substring(2)) > 0;
+          } catch (NumberFormatException e) {
+            return false;
+          }
+        }
+      }
+      return true;
+    }
+    return false;
+  }
+}
@@ -0,0 +1,86 @@
+package com.google.musicanalysis.site;
+
+import java.io.Serializable;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * The genres counted from a user's liked videos, along with the ids of the most recently liked of
+ * them. It is kept in the user's session, so that the next request only has to fetch the videos
+ * liked since, up to the first one it already counted.
+ */
+final class LikedGenreState implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  /** Session attribute the state is stored under */
+  static final String SESSION_KEY = "youtube-liked-genres";
+
+  /** How many recent ids are kept, enough to find a known video if the latest were unliked */
+  static final int MAX_RECENT_IDS = 50;
+
+  // Topics of old videos can change, so everything is counted again once in a while
+  private static final Duration MAX_AGE =
+      Duration.ofMinutes(
+          Long.parseLong(
+              System.getenv().getOrDefault("YOUTUBE_GENRE_STATE_MAX_AGE_MINUTES", "1440")));
+
+  final YoutubeGenres genres;
+  private final ArrayList<String> recentIds;
+  private final HashSet<String> recentIdSet;
+  private final Instant fullyCountedAt;
+
+  private LikedGenreState(YoutubeGenres genres, List<String> recentIds, Instant fullyCountedAt) {
+    this.genres = genres;
+    this.recentIds =
+        new ArrayList<>(recentIds.subList(0, Math.min(recentIds.size(), MAX_RECENT_IDS)));
+    this.recentIdSet = new HashSet<>(this.recentIds);
+    this.fullyCountedAt = fullyCountedAt;
+  }
+
+  /**
+   * @param genres genres of all of the user's liked videos
+   * @param recentIds ids of the liked videos, most recently liked first
+   * @return the state after counting every liked video
+   */
+  static LikedGenreState counted(YoutubeGenres genres, List<String> recentIds) {
+    return new LikedGenreState(genres, recentIds, Instant.now());
+  }
+
+  /**
+   * @param newGenres genres of the videos liked since this state was saved
+   *     and how many videos the user likes now
+   * @param newIds ids of those videos, most recently liked first
+   * @return the state with the new videos counted as well
+   */
+  LikedGenreState plus(YoutubeGenres newGenres, List<String> newIds) {
+    YoutubeGenres sum = genres.plus(newGenres);
+    sum.totalLiked = newGenres.totalLiked;
+    List<String> ids = new ArrayList<>(newIds);
+    ids.addAll(recentIds);
+    return new LikedGenreState(sum, ids, fullyCountedAt);
+  }
+
+  /** @return whether the video was one of the most recently liked ones when the state was saved */
+  boolean isKnown(String videoId) {
+    return recentIdSet.contains(videoId);
+  }
+
+  /**
+   * @param ids ids of liked videos as Youtube lists them now, from the first known one on
+   * @return whether they start with the saved ids, as far as both go. A saved id that is missing or
+   *     out of place means a video was unliked, or unliked and liked again, since the state was
+   *     saved.
+   */
+  boolean isContinuedBy(List<String> ids) {
+    int compared = Math.min(ids.size(), recentIds.size());
+    return recentIds.subList(0, compared).equals(ids.subList(0, compared));
+  }
+
+  /** @return whether it is time to count every liked video again */
+  boolean isExpired() {
+    return Instant.now().isAfter(fullyCountedAt.plus(MAX_AGE));
+  }
+}
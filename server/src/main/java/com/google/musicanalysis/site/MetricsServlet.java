@@ -0,0 +1,47 @@
+package com.google.musicanalysis.site;
+
+import com.google.gson.Gson;
+import com.google.musicanalysis.util.Metrics;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import javax.servlet.ServletException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Servlet reports the server's internal counters, such as cache hit rates, as JSON. They tell
+ * anyone how close the server is to its quotas, so they are only served to requests that carry
+ * the METRICS_TOKEN in an X-Metrics-Token header. Without that variable the servlet answers 404.
+ */
+@WebServlet("/api/metrics")
+public class MetricsServlet extends HttpServlet {
+  private static final String TOKEN = System.getenv().getOrDefault("METRICS_TOKEN", "");
+
+  @Override
+  protected void doGet(HttpServletRequest req, HttpServletResponse res)
+      throws ServletException, IOException {
+    res.setHeader("Cache-Control", "no-store");
+    if (TOKEN.isEmpty()) {
+      res.setStatus(HttpServletResponse.SC_NOT_FOUND);
+      return;
+    }
+    if (!isToken(req.getHeader("X-Metrics-Token"))) {
+      res.setStatus(HttpServletResponse.SC_FORBIDDEN);
+      return;
+    }
+
+    Gson gson = new Gson();
+    res.setContentType("application/json");
+    res.getWriter().println(gson.toJson(Metrics.snapshot()));
+  }
+
+  /** @return whether the header holds the token, compared in constant time */
+  private static boolean isToken(String header) {
+    return header != null
+        && MessageDigest.isEqual(
+            header.getBytes(StandardCharsets.UTF_8), TOKEN.getBytes(StandardCharsets.UTF_8));
+  }
+}
@@ -2,10 +2,10 @@ package com.google.musicanalysis.site;
 import com.google.musicanalysis.util.Constants;
 
 import com.google.gson.JsonParser;
+import com.google.musicanalysis.api.SharedHttpClient;
 import com.google.musicanalysis.util.URLEncodedBuilder;
 import java.io.IOException;
 import java.net.URI;
-import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpRequest.BodyPublishers;
 import java.net.http.HttpResponse.BodyHandlers;
@@ -76,14 +76,13 @@ public abstract class OAuthCallbackServlet extends HttpServlet {
             .add("client_id", getClientId())
             .add("client_secret", getClientSecret());
 
-    var httpClient = HttpClient.newHttpClient();
     var tokenReq =
         HttpRequest.newBuilder(URI.create(getTokenUri()))
             .header("Content-Type", "application/x-www-form-urlencoded")
             .POST(BodyPublishers.ofString(tokenReqBody.build()))
             .build();
 
-    var tokenRes = httpClient.sendAsync(tokenReq, BodyHandlers.ofString()).join();
+    var tokenRes = SharedHttpClient.get().sendAsync(tokenReq, BodyHandlers.ofString()).join();
     var tokenResBody = tokenRes.body();
 
     var tokenResObj = JsonParser.parseString(tokenResBody).getAsJsonObject();
@@ -0,0 +1,173 @@
+package com.google.musicanalysis.site;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Maps the Wikipedia URLs Youtube uses as topic categories to small genre ids, so that classifying
+ * a liked video is a map lookup instead of string manipulation. The topics Youtube documents are
+ * classified once when the class loads. Any other URL is classified the first time it is seen and
+ * remembered, up to a limit. Genres are limited too, so that URLs Youtube makes up can't grow the
+ * dictionary without bound: once the limit is reached, a genre that hasn't been seen is counted as
+ * Other music.
+ *
+ * <p>A topic whose name is "Music" marks a video as music, any other topic whose name contains
+ * "music" is a genre, and everything else is ignored.
+ */
+final class TopicDictionary {
+  /** Class of a topic that isn't about music */
+  static final int NOT_MUSIC = -1;
+
+  /** Class of the "Music" topic itself, which doesn't name a genre */
+  static final int MUSIC_ONLY = -2;
+
+  /** Genre counted for music videos without any genre topic */
+  static final int OTHER_MUSIC;
+
+  // Youtube has a few dozen topics, the limit only guards against unexpected URLs
+  private static final int MAX_TOPICS = 4096;
+
+  // The documented topics have a dozen genres, the limit only guards against unexpected ones
+  static final int MAX_GENRES = 256;
+
+  // https://developers.google.com/youtube/v3/docs/videos#topicDetails.topicCategories[]
+  private static final List<String> KNOWN_TOPICS =
+      Arrays.asList(
+          "Music",
+          "Christian_music",
+          "Classical_music",
+          "Country_music",
+          "Electronic_music",
+          "Hip_hop_music",
+          "Independent_music",
+          "Jazz",
+          "Music_of_Asia",
+          "Music_of_Latin_America",
+          "Pop_music",
+          "Reggae",
+          "Rhythm_and_blues",
+          "Rock_music",
+          "Soul_music",
+          "Video_game_culture",
+          "Action_game",
+          "Action-adventure_game",
+          "Casual_game",
+          "Music_video_game",
+          "Puzzle_video_game",
+          "Racing_video_game",
+          "Role-playing_video_game",
+          "Simulation_video_game",
+          "Sports_game",
+          "Strategy_video_game",
+          "Sport",
+          "American_football",
+          "Association_football",
+          "Baseball",
+          "Basketball",
+          "Boxing",
+          "Cricket",
+          "Golf",
+          "Ice_hockey",
+          "Mixed_martial_arts",
+          "Motorsport",
+          "Professional_wrestling",
+          "Tennis",
+          "Volleyball",
+          "Entertainment",
+          "Humour",
+          "Film",
+          "Performing_arts",
+          "Television_program",
+          "Lifestyle_(sociology)",
+          "Fashion",
+          "Fitness",
+          "Food",
+          "Hobby",
+          "Pet",
+          "Physical_attractiveness",
+          "Technology",
+          "Tourism",
+          "Vehicle",
+          "Society",
+          "Business",
+          "Health",
+          "Military",
+          "Politics",
+          "Religion",
+          "Knowledge");
+
+  // Topic URL to its class, a genre id or one of the negative constants
+  private static final ConcurrentHashMap<String, Integer> TOPICS = new ConcurrentHashMap<>();
+
+  // Genre name to id, and id to name. Ids are handed out in order and never change.
+  private static final Map<String, Integer> GENRE_IDS = new HashMap<>();
+  private static final List<String> GENRE_NAMES = new CopyOnWriteArrayList<>();
+
+  static {
+    OTHER_MUSIC = genreId("Other music");
+    for (String topic : KNOWN_TOPICS) {
+      String url = "https://en.wikipedia.org/wiki/" + topic;
+      TOPICS.put(url, computeClass(url));
+    }
+  }
+
+  private TopicDictionary() {}
+
+  /**
+   * @param url a topic category of a video
+   * @return the id of the genre the topic names, or NOT_MUSIC or MUSIC_ONLY
+   */
+  static int classify(String url) {
+    Integer known = TOPICS.get(url);
+    if (known != null) {
+      return known;
+    }
+
+    int computed = computeClass(url);
+    if (TOPICS.size() < MAX_TOPICS) {
+      TOPICS.putIfAbsent(url, computed);
+    }
+    return computed;
+  }
+
+  /** @return how many genre ids have been handed out, all of which are below this */
+  static int genreCount() {
+    return GENRE_NAMES.size();
+  }
+
+  /** @return the name of a genre, e.g. Pop music */
+  static String genreName(int genreId) {
+    return GENRE_NAMES.get(genreId);
+  }
+
+  /** Classifies a topic by the last segment of its URL, e.g. Pop_music */
+  private static int computeClass(String url) {
+    String topic = url.substring(url.lastIndexOf('/') + 1).replace("\"", "").replace('_', ' ');
+    if (topic.equals("Music")) {
+      return MUSIC_ONLY;
+    }
+    return topic.toLowerCase(Locale.ROOT).contains("music") ? genreId(topic) : NOT_MUSIC;
+  }
+
+  /**
+   * @return the id of a genre, handing out a new one if it hasn't been seen, or OTHER_MUSIC if it
+   *     hasn't and MAX_GENRES have been handed out
+   */
+  static synchronized int genreId(String name) {
+    Integer id = GENRE_IDS.get(name);
+    if (id == null) {
+      if (GENRE_NAMES.size() >= MAX_GENRES) {
+        return OTHER_MUSIC;
+      }
+      id = GENRE_NAMES.size();
+      GENRE_NAMES.add(name);
+      GENRE_IDS.put(name, id);
+    }
+    return id;
+  }
+}
@@ -4,36 +4,74 @@ import com.google.gson.JsonParser;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonArray;
 import com.google.gson.Gson;
-import java.util.HashMap;
-import java.util.Map;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.Arrays;
 import java.lang.Math;
 
-enum MusicTopic {
-  MUSIC_ONLY,
-  MUSIC_SUBGENRE,
-  NOT_MUSIC
-}
-
 /** contains final object that YoutubeServlet.java sends to frontend */
-public class YoutubeGenres {  
+public class YoutubeGenres implements Serializable {  
+  private static final long serialVersionUID = 1L;
+
   // totalLiked is parsed outside from youtube json response 
   public int totalLiked;
 
-  public HashMap<String, Integer> genreData = new HashMap<String, Integer>();
+  // count of each genre, indexed by its id in TopicDictionary
+  // written by name, since ids are only meaningful in the process that handed them out
+  private transient int[] genreCounts = new int[TopicDictionary.genreCount()];
   public int totalMusic = 0;
   public int maxGenreCount = 0;
 
+  /** Writes the genres the way Gson's reflection did, without reflecting on every response */
+  static final TypeAdapter<YoutubeGenres> JSON_ADAPTER =
+      new TypeAdapter<YoutubeGenres>() {
+        @Override
+        public void write(JsonWriter out, YoutubeGenres genres) throws IOException {
+          out.beginObject();
+          out.name("totalLiked").value(genres.totalLiked);
+          out.name("genreData").beginObject();
+          for (int genreId = 0; genreId < genres.genreCounts.length; genreId++) {
+            if (genres.genreCounts[genreId] > 0) {
+              out.name(TopicDictionary.genreName(genreId)).value(genres.genreCounts[genreId]);
+            }
+          }
+          out.endObject();
+          out.name("totalMusic").value(genres.totalMusic);
+          out.name("maxGenreCount").value(genres.maxGenreCount);
+          out.endObject();
+        }
+
+        @Override
+        public YoutubeGenres read(JsonReader in) {
+          throw new UnsupportedOperationException("Genres are only written");
+        }
+      };
+
   public YoutubeGenres() {
 
   }
 
 /**
  * parses through youtube liked videos json array,
- * updates hash map to contain frequency count of each music genre
+ * updates counts of each music genre
  * @param videos json array of youtube liked videos
  */
   protected void calculateMusicCount(JsonArray videos) {
-    for (int i = 0; i < videos.size(); i++) {
+    calculateMusicCount(videos, videos.size());
+  }
+
+/**
+ * updates counts of each music genre with the first videos of a json array
+ * @param videos json array of youtube liked videos
+ * @param count how many videos from the start of the array to count
+ */
+  protected void calculateMusicCount(JsonArray videos, int count) {
+    for (int i = 0; i < count; i++) {
         JsonObject video = videos.get(i).getAsJsonObject();
         JsonObject topicDetails = video.getAsJsonObject("topicDetails");
 
@@ -43,62 +81,93 @@ public class YoutubeGenres {
         }
 
         JsonArray topicCategories = topicDetails.getAsJsonArray("topicCategories");
-        
+        if (topicCategories == null) {
+            continue;
+        }
+
         boolean isMusic = false;
         int totalSubgenres = 0;
         for (int j = 0; j < topicCategories.size(); j++) {
-            // extract music genre out of wikipedia links of topic categories
-            String link = topicCategories.get(j).toString();
-            String topic = link.substring(link.lastIndexOf('/') + 1);
-            topic = topic.replaceAll("\"", "");
-            topic = topic.replaceAll("_", " ");
-
-            switch (this.getMusicCategory(topic)) {
-              case MUSIC_ONLY:
+            // topic categories are wikipedia links, known ones are looked up without copying
+            int topic = TopicDictionary.classify(topicCategories.get(j).getAsString());
+
+            if (topic == TopicDictionary.MUSIC_ONLY) {
                 isMusic = true;
                 totalMusic++;
-                break;
-              case MUSIC_SUBGENRE:
-                // topic is a music subgenre so we update genre 
+            } else if (topic != TopicDictionary.NOT_MUSIC) {
+                // topic is a music subgenre so we update genre
                 totalSubgenres++;
                 this.updateGenre(topic);
-                break;
-              case NOT_MUSIC:
-                continue;
             }
         }
 
         if (isMusic && totalSubgenres == 0) {
             // video only classified as Music so we update as "Other music"
-            this.updateGenre("Other music");
+            this.updateGenre(TopicDictionary.OTHER_MUSIC);
         }
     }
     return;
   }
 
 /**
- * checks whether topic is categorized a music only, music subgenre, or not music
- * @param topic identifies youtube video category e.g. Knowledge or Pop music
- * @return MUSIC_ONLY if topic is "Music", 
- *         MUSIC_SUBGENRE if topic is a specific music category (Pop Music), 
- *         NOT_MUSIC if topic is not music
+ * adds up the music counts of two sets of liked videos, without changing either
+ * @param other genres of other liked videos
+ * @return genres of both, with the total liked videos of this one
  */
-  private MusicTopic getMusicCategory(String topic) {
-    if (topic.equals("Music")) {
-        return MusicTopic.MUSIC_ONLY;
+  protected YoutubeGenres plus(YoutubeGenres other) {
+    YoutubeGenres sum = new YoutubeGenres();
+    sum.totalLiked = totalLiked;
+    sum.totalMusic = totalMusic + other.totalMusic;
+    sum.genreCounts =
+        Arrays.copyOf(genreCounts, Math.max(genreCounts.length, other.genreCounts.length));
+    for (int genreId = 0; genreId < other.genreCounts.length; genreId++) {
+      sum.genreCounts[genreId] += other.genreCounts[genreId];
     }
-
-    return topic.toLowerCase().contains("music") ? MusicTopic.MUSIC_SUBGENRE : MusicTopic.NOT_MUSIC;
+    for (int count : sum.genreCounts) {
+      sum.maxGenreCount = Math.max(count, sum.maxGenreCount);
+    }
+    return sum;
   }
 
 /**
- * updates this.genreData HashMap with new genre or count
- * by checking if key exists
- * @param topic identifies youtube video music category e.g. Pop music
+ * increments the count of a genre
+ * @param genreId id of the genre in TopicDictionary, e.g. of Pop music
  */
-  private void updateGenre(String topic) {
-    int count = this.genreData.containsKey(topic) ? this.genreData.get(topic) : 0;
-    this.genreData.put(topic, count + 1);
-    maxGenreCount = Math.max(count + 1, maxGenreCount);
+  private void updateGenre(int genreId) {
+    if (genreId >= genreCounts.length) {
+      // genre was added to the dictionary after this object was created
+      genreCounts = Arrays.copyOf(genreCounts, TopicDictionary.genreCount());
+    }
+    int count = ++genreCounts[genreId];
+    maxGenreCount = Math.max(count, maxGenreCount);
+  }
+
+  private void writeObject(ObjectOutputStream out) throws IOException {
+    out.defaultWriteObject();
+    int genres = 0;
+    for (int count : genreCounts) {
+      genres += count > 0 ? 1 : 0;
+    }
+    out.writeInt(genres);
+    for (int genreId = 0; genreId < genreCounts.length; genreId++) {
+      if (genreCounts[genreId] > 0) {
+        out.writeUTF(TopicDictionary.genreName(genreId));
+        out.writeInt(genreCounts[genreId]);
+      }
+    }
+  }
+
+  private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+    in.defaultReadObject();
+    genreCounts = new int[TopicDictionary.genreCount()];
+    int genres = in.readInt();
+    for (int i = 0; i < genres; i++) {
+      int genreId = TopicDictionary.genreId(in.readUTF());
+      if (genreId >= genreCounts.length) {
+        genreCounts = Arrays.copyOf(genreCounts, TopicDictionary.genreCount());
+      }
+      // genres past the dictionary's limit are all read into Other music
+      genreCounts[genreId] += in.readInt();
+    }
   }
 }
@@ -1,4 +1,5 @@
 package com.google.musicanalysis.site;
+import com.google.musicanalysis.api.SharedHttpClient;
 import com.google.musicanalysis.util.Secrets;
 import com.google.musicanalysis.util.URLEncodedBuilder;
 
@@ -6,13 +7,12 @@ import com.google.gson.JsonParser;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonPrimitive;
-import com.google.gson.Gson;
 import java.io.IOException;
 import java.net.URI;
-import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
-import java.net.http.HttpRequest.BodyPublishers;
-import java.net.http.HttpResponse.BodyHandlers;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
@@ -24,35 +24,44 @@ import javax.servlet.annotation.WebServlet;
 @WebServlet("/api/youtube")
 public class YoutubeServlet extends HttpServlet {
 
+    // The most liked videos the API returns per page, instead of its default of 5
+    private static final int PAGE_SIZE = 50;
+
+    // Only what the genre count reads, so the rest of each video isn't sent
+    private static final String FIELDS =
+        "nextPageToken,pageInfo/totalResults,items(id,topicDetails/topicCategories)";
+
     /**
      * makes http request of youtube api to retrieve topics of liked videos, 
-     *  gets json string of youtube response
+     *  without waiting for the response
      * @param apiKey youtube api key
      * @param accessToken youtube access token from login
-     * @return JSON string of youtube response of liked video topics
-     * @throws ServletException
-     * @throws IOException
+     * @param pageToken token of the page to get, empty for the first page
+     * @return future of json obj of youtube response of liked video topics,
+     *  completes exceptionally with an IOException if the request fails
      */
-    protected String getYoutubeRes(String apiKey, String accessToken, String pageToken) 
-        throws ServletException, IOException {
+    protected CompletableFuture<JsonObject> getYoutubeRes(
+        String apiKey, String accessToken, String pageToken) {
         // make http request to youtube API
         URLEncodedBuilder youtubeParam = new URLEncodedBuilder()
             .add("part", "topicDetails")
             .add("myRating", "like")
+            .add("maxResults", String.valueOf(PAGE_SIZE))
+            .add("fields", FIELDS)
             .add("key", apiKey)
             .add("pageToken", pageToken);
         URI youtubeUri = URI.create("https://www.googleapis.com/youtube/v3/videos?" + youtubeParam.build());
 
-        var httpClient = HttpClient.newHttpClient();
         HttpRequest youtubeReq = HttpRequest.newBuilder(youtubeUri)
+                .timeout(SharedHttpClient.timeoutFor(youtubeUri))
                 .header("Authorization", "Bearer " + accessToken)
                 .header("Accept", "application/json")
                 .GET()
                 .build();
 
-        // get response from Youtube API 
-        var youtubeRes = httpClient.sendAsync(youtubeReq, BodyHandlers.ofString()).join();
-        return youtubeRes.body();
+        // response is parsed on the http client's threads, not the one waiting for it
+        return SharedHttpClient.sendAsync(youtubeReq, "getting liked videos")
+            .thenApply(body -> JsonParser.parseString(body).getAsJsonObject());
     }
 
     /**
@@ -92,32 +101,116 @@ public class YoutubeServlet extends HttpServlet {
             return;
         }
 
-        String youtubeResBody; 
-        JsonObject likedVideoRes;
-        JsonArray videos;
-        YoutubeGenres genreAnalysis = new YoutubeGenres();
+        LikedGenreState previous =
+            (LikedGenreState) session.getAttribute(LikedGenreState.SESSION_KEY);
+        if (previous != null && previous.isExpired()) {
+            previous = null;
+        }
+
+        LikedGenreState state = countLikes(API_KEY, accessToken.toString(), previous);
+        if (state == null) {
+            // videos were unliked since the last count, so it can't just be added to
+            state = countLikes(API_KEY, accessToken.toString(), null);
+        }
+        session.setAttribute(LikedGenreState.SESSION_KEY, state);
+
+        JsonResponses.write(req, res, YoutubeGenres.JSON_ADAPTER, state.genres);
+    }
+
+    /**
+     * counts the genres of the user's liked videos, from the most recently liked
+     *  one back to the first one counted last time
+     * @param apiKey youtube api key
+     * @param accessToken youtube access token from login
+     * @param previous what was counted last time, or null to count every liked video
+     * @return the genres of every liked video, or null if they can't be
+     *  worked out from previous because videos were unliked since. An unlike is
+     *  noticed if a saved id is missing or out of order on the page where the
+     *  first known video is, or if the total no longer adds up
+     * @throws IOException if a request to youtube fails
+     */
+    protected LikedGenreState countLikes(
+        String apiKey, String accessToken, LikedGenreState previous) throws IOException {
+        YoutubeGenres newGenres = new YoutubeGenres();
+        List<String> newIds = new ArrayList<>();
+        int totalNew = 0;
+        boolean reachedKnown = false;
+        boolean knownInOrder = true;
 
         // next Page Token must be an empty string for first http call
-        String nextPageToken = "";
-        while (nextPageToken != null) {
-            youtubeResBody = getYoutubeRes(API_KEY, 
-                                            accessToken.toString(), 
-                                            nextPageToken);            
-            likedVideoRes = JsonParser.parseString(youtubeResBody).getAsJsonObject();
-
-            if (nextPageToken == "") {
+        CompletableFuture<JsonObject> page = getYoutubeRes(apiKey, accessToken, "");
+        boolean firstPage = true;
+        while (page != null) {
+            JsonObject likedVideoRes = SharedHttpClient.await(page);
+
+            if (firstPage) {
                 // only need one JSON response to get totalLiked
-                genreAnalysis.totalLiked = getTotalResults(likedVideoRes);
+                newGenres.totalLiked = getTotalResults(likedVideoRes);
+                firstPage = false;
             }
 
-            videos = likedVideoRes.getAsJsonArray("items");
-            genreAnalysis.calculateMusicCount(videos);
+            // items are left out of an empty page because of the fields mask
+            JsonArray videos = likedVideoRes.getAsJsonArray("items");
+            if (videos == null) {
+                videos = new JsonArray();
+            }
 
-            nextPageToken = getNextPageToken(likedVideoRes);
+            // videos are sorted by when they were liked, so new ones come before known ones
+            int newOnPage = 0;
+            while (newOnPage < videos.size()) {
+                String videoId = getVideoId(videos.get(newOnPage).getAsJsonObject());
+                if (previous != null && previous.isKnown(videoId)) {
+                    reachedKnown = true;
+                    knownInOrder = previous.isContinuedBy(getVideoIds(videos, newOnPage));
+                    break;
+                }
+                if (newIds.size() < LikedGenreState.MAX_RECENT_IDS) {
+                    newIds.add(videoId);
+                }
+                newOnPage++;
+            }
+            totalNew += newOnPage;
+
+            // request the next page before classifying this one, so the two overlap
+            String nextPageToken = reachedKnown ? null : getNextPageToken(likedVideoRes);
+            page = nextPageToken == null
+                ? null
+                : getYoutubeRes(apiKey, accessToken, nextPageToken);
+
+            newGenres.calculateMusicCount(videos, newOnPage);
+        }
+
+        if (!reachedKnown) {
+            // every liked video was fetched, none of which had been counted before
+            return LikedGenreState.counted(newGenres, newIds);
+        }
+        // Only the saved ids on the rest of the page are checked, so an unlike further back is
+        // only noticed by the total, which a new like in the same time makes up for
+        if (!knownInOrder || previous.genres.totalLiked + totalNew != newGenres.totalLiked) {
+            return null;
+        }
+        return previous.plus(newGenres, newIds);
+    }
+
+    /**
+     * @param videos json array of liked videos
+     * @param from index of the first video to include
+     * @return ids of the videos from that index to the end of the array
+     */
+    private List<String> getVideoIds(JsonArray videos, int from) {
+        List<String> ids = new ArrayList<>();
+        for (int i = from; i < videos.size(); i++) {
+            ids.add(getVideoId(videos.get(i).getAsJsonObject()));
         }
+        return ids;
+    }
 
-        Gson gson = new Gson();
-        res.setContentType("application/json"); 
-        res.getWriter().println(gson.toJson(genreAnalysis));
+    /**
+     * @param video json obj of a liked video
+     * @return id of the video, or an empty string if it has none
+     */
+    protected String getVideoId(JsonObject video) {
+        JsonPrimitive id = video.getAsJsonPrimitive("id");
+        return id == null ? "" : id.getAsString();
     }
 }
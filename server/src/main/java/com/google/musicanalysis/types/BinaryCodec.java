@@ -0,0 +1,299 @@
+package com.google.musicanalysis.types;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A compact binary format for cached analyses, used instead of Java serialization so that the
+ * stored bytes don't depend on class layouts and don't carry class descriptors.
+ *
+ * <p>Every encoded value starts with a version byte. Integers are written as varints (zigzag
+ * encoded when they can be negative), and strings as a varint byte length followed by UTF-8. Counts
+ * and lengths are stored plus one, so that zero can stand for null.
+ *
+ * <p>When a field is added, bump VERSION and keep reading the older versions in {@link #decode}.
+ */
+public final class BinaryCodec {
+  public static final byte VERSION = 1;
+
+  private BinaryCodec() {}
+
+  /**
+   * Encodes a cache value.
+   *
+   * @param value the value to encode
+   * @return the encoded bytes, starting with the format version
+   */
+  public static byte[] encode(CacheValue value) {
+    Writer out = new Writer();
+    out.writeByte(VERSION);
+    out.writeInstant(value.timestamp);
+    writeVideoAnalysis(out, value.responseData);
+    return out.toByteArray();
+  }
+
+  /**
+   * Decodes a cache value written by {@link #encode}.
+   *
+   * @param bytes the encoded bytes
+   * @return the decoded value
+   * @throws IOException if the bytes are of an unknown version or malformed
+   */
+  public static CacheValue decode(byte[] bytes) throws IOException {
+    ByteBuffer in = ByteBuffer.wrap(bytes);
+    try {
+      byte version = in.get();
+      if (version != VERSION) {
+        throw new IOException("Unsupported cache value version " + version);
+      }
+      Instant timestamp = readInstant(in);
+      CacheValue value = new CacheValue(readVideoAnalysis(in), timestamp);
+      if (in.hasRemaining()) {
+        throw new IOException(in.remaining() + " unexpected bytes after cache value");
+      }
+      return value;
+    } catch (BufferUnderflowException
+        | IllegalArgumentException
+        | DateTimeException
+        | ArithmeticException e) {
+      throw new IOException("Malformed cache value", e);
+    }
+  }
+
+  private static void writeVideoAnalysis(Writer out, VideoAnalysis analysis) {
+    if (analysis == null) {
+      out.writeNullableCount(-1);
+      return;
+    }
+    // A presence marker, so the analysis itself can be null
+    out.writeNullableCount(0);
+
+    HashMap<String, String> perspectiveMap = analysis.perspectiveMap;
+    out.writeNullableCount(perspectiveMap == null ? -1 : perspectiveMap.size());
+    if (perspectiveMap != null) {
+      for (Map.Entry<String, String> entry : perspectiveMap.entrySet()) {
+        out.writeString(entry.getKey());
+        out.writeString(entry.getValue());
+      }
+    }
+
+    writeNLPResult(out, analysis.magnitudeAndScore);
+
+    ArrayList<Comment> comments = analysis.commentArray;
+    out.writeNullableCount(comments == null ? -1 : comments.size());
+    if (comments != null) {
+      for (Comment comment : comments) {
+        writeComment(out, comment);
+      }
+    }
+
+    out.writeString(analysis.videoId);
+    writeVideoInfo(out, analysis.videoInfo);
+  }
+
+  private static VideoAnalysis readVideoAnalysis(ByteBuffer in) throws IOException {
+    if (readNullableCount(in) < 0) {
+      return null;
+    }
+
+    int perspectiveCount = readNullableCount(in);
+    HashMap<String, String> perspectiveMap = null;
+    if (perspectiveCount >= 0) {
+      perspectiveMap = new HashMap<>();
+      for (int i = 0; i < perspectiveCount; i++) {
+        perspectiveMap.put(readString(in), readString(in));
+      }
+    }
+
+    NLPResult magnitudeAndScore = readNLPResult(in);
+
+    int commentCount = readNullableCount(in);
+    ArrayList<Comment> comments = null;
+    if (commentCount >= 0) {
+      comments = new ArrayList<>(commentCount);
+      for (int i = 0; i < commentCount; i++) {
+        comments.add(readComment(in));
+      }
+    }
+
+    String videoId = readString(in);
+    VideoInfo videoInfo = readVideoInfo(in);
+    return new VideoAnalysis(perspectiveMap, magnitudeAndScore, comments, videoId, videoInfo);
+  }
+
+  private static void writeNLPResult(Writer out, NLPResult result) {
+    out.writeBoolean(result != null);
+    if (result != null) {
+      out.writeDouble(result.magnitude);
+      out.writeDouble(result.score);
+    }
+  }
+
+  private static NLPResult readNLPResult(ByteBuffer in) {
+    if (in.get() == 0) {
+      return null;
+    }
+    return new NLPResult(in.getDouble(), in.getDouble());
+  }
+
+  private static void writeComment(Writer out, Comment comment) {
+    out.writeBoolean(comment != null);
+    if (comment != null) {
+      out.writeString(comment.text);
+      out.writeBoolean(comment.likes != null);
+      if (comment.likes != null) {
+        out.writeSignedVarint(comment.likes);
+      }
+    }
+  }
+
+  private static Comment readComment(ByteBuffer in) throws IOException {
+    if (in.get() == 0) {
+      return null;
+    }
+    String text = readString(in);
+    Integer likes = in.get() == 0 ? null : (int) readSignedVarint(in);
+    return new Comment(text, likes);
+  }
+
+  private static void writeVideoInfo(Writer out, VideoInfo info) {
+    out.writeBoolean(info != null);
+    if (info != null) {
+      out.writeString(info.name);
+      out.writeString(info.channel);
+      out.writeBoolean(info.publishedDate != null);
+      if (info.publishedDate != null) {
+        out.writeInstant(info.publishedDate);
+      }
+    }
+  }
+
+  private static VideoInfo readVideoInfo(ByteBuffer in) throws IOException {
+    if (in.get() == 0) {
+      return null;
+    }
+    String name = readString(in);
+    String channel = readString(in);
+    Instant publishedDate = in.get() == 0 ? null : readInstant(in);
+    return new VideoInfo(name, channel, publishedDate);
+  }
+
+  private static Instant readInstant(ByteBuffer in) throws IOException {
+    long seconds = readSignedVarint(in);
+    long nanos = readVarint(in);
+    return Instant.ofEpochSecond(seconds, nanos);
+  }
+
+  /** @return the count, or -1 for null */
+  private static int readNullableCount(ByteBuffer in) throws IOException {
+    long count = readVarint(in) - 1;
+    // Every element takes at least one byte, so a count larger than what is left can't be right
+    if (count < -1 || count > in.remaining()) {
+      throw new IOException("Malformed cache value, count " + count + " is out of range");
+    }
+    return (int) count;
+  }
+
+  private static String readString(ByteBuffer in) throws IOException {
+    int length = readNullableCount(in);
+    if (length < 0) {
+      return null;
+    }
+    String string = new String(in.array(), in.position(), length, StandardCharsets.UTF_8);
+    in.position(in.position() + length);
+    return string;
+  }
+
+  private static long readVarint(ByteBuffer in) throws IOException {
+    long result = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      byte b = in.get();
+      result |= (long) (b & 0x7f) << shift;
+      if (b >= 0) {
+        return result;
+      }
+    }
+    throw new IOException("Malformed cache value, varint is too long");
+  }
+
+  private static long readSignedVarint(ByteBuffer in) throws IOException {
+    long zigzag = readVarint(in);
+    return (zigzag >>> 1) ^ -(zigzag & 1);
+  }
+
+  /** A growable byte array, which is cheaper than a stream for many tiny writes */
+  private static class Writer {
+    private byte[] buffer = new byte[256];
+    private int size;
+
+    void writeByte(int b) {
+      ensureCapacity(1);
+      buffer[size++] = (byte) b;
+    }
+
+    void writeBoolean(boolean b) {
+      writeByte(b ? 1 : 0);
+    }
+
+    void writeDouble(double d) {
+      long bits = Double.doubleToRawLongBits(d);
+      ensureCapacity(8);
+      for (int shift = 56; shift >= 0; shift -= 8) {
+        buffer[size++] = (byte) (bits >>> shift);
+      }
+    }
+
+    void writeVarint(long value) {
+      ensureCapacity(10);
+      while ((value & ~0x7fL) != 0) {
+        buffer[size++] = (byte) ((value & 0x7f) | 0x80);
+        value >>>= 7;
+      }
+      buffer[size++] = (byte) value;
+    }
+
+    void writeSignedVarint(long value) {
+      writeVarint((value << 1) ^ (value >> 63));
+    }
+
+    /** @param count the count, or -1 for null */
+    void writeNullableCount(int count) {
+      writeVarint(count + 1L);
+    }
+
+    void writeString(String string) {
+      if (string == null) {
+        writeNullableCount(-1);
+        return;
+      }
+      byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+      writeNullableCount(bytes.length);
+      ensureCapacity(bytes.length);
+      System.arraycopy(bytes, 0, buffer, size, bytes.length);
+      size += bytes.length;
+    }
+
+    void writeInstant(Instant instant) {
+      writeSignedVarint(instant.getEpochSecond());
+      writeVarint(instant.getNano());
+    }
+
+    byte[] toByteArray() {
+      return Arrays.copyOf(buffer, size);
+    }
+
+    private void ensureCapacity(int extra) {
+      if (size + extra > buffer.length) {
+        buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + extra));
+      }
+    }
+  }
+}
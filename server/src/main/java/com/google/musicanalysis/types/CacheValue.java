@@ -4,11 +4,19 @@ import java.time.Instant;
 import java.io.Serializable;
 
 public class CacheValue implements Serializable {
+    // Pinned, so that changing the constructors doesn't change it
+    private static final long serialVersionUID = 1318149723241750731L;
+
     public final VideoAnalysis responseData;
     public final Instant timestamp;
 
     public CacheValue(VideoAnalysis responseData) {
+        this(responseData, Instant.now());
+    }
+
+    /** Recreates a value that was cached at the given time */
+    public CacheValue(VideoAnalysis responseData, Instant timestamp) {
         this.responseData = responseData;
-        this.timestamp = Instant.now();
+        this.timestamp = timestamp;
     }
 }
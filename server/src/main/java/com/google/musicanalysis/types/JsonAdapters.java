@@ -0,0 +1,153 @@
+package com.google.musicanalysis.types;
+
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
+import java.time.Instant;
+import java.util.Map;
+
+/**
+ * Hand-written Gson adapters for the types sent to the front end. They write the same JSON that
+ * Gson's reflection based adapters would, field by field and without reflection, so a response can
+ * be streamed straight into the servlet's output.
+ *
+ * <p>Like Gson's defaults, null fields are left out. The adapters only write, responses are never
+ * read back.
+ */
+public final class JsonAdapters {
+  private JsonAdapters() {}
+
+  public static final TypeAdapter<VideoAnalysis> VIDEO_ANALYSIS =
+      new WriteOnlyAdapter<VideoAnalysis>() {
+        @Override
+        public void write(JsonWriter out, VideoAnalysis analysis) throws IOException {
+          if (analysis == null) {
+            out.nullValue();
+            return;
+          }
+          out.beginObject();
+          if (analysis.perspectiveMap != null) {
+            out.name("perspectiveMap");
+            writeStringMap(out, analysis.perspectiveMap);
+          }
+          if (analysis.magnitudeAndScore != null) {
+            out.name("magnitudeAndScore");
+            NLP_RESULT.write(out, analysis.magnitudeAndScore);
+          }
+          if (analysis.commentArray != null) {
+            out.name("commentArray");
+            out.beginArray();
+            for (Comment comment : analysis.commentArray) {
+              COMMENT.write(out, comment);
+            }
+            out.endArray();
+          }
+          if (analysis.videoId != null) {
+            out.name("videoId").value(analysis.videoId);
+          }
+          if (analysis.videoInfo != null) {
+            out.name("videoInfo");
+            VIDEO_INFO.write(out, analysis.videoInfo);
+          }
+          if (analysis.isPartial()) {
+            out.name("unavailable");
+            out.beginArray();
+            for (String part : analysis.unavailable) {
+              out.value(part);
+            }
+            out.endArray();
+          }
+          out.endObject();
+        }
+      };
+
+  public static final TypeAdapter<NLPResult> NLP_RESULT =
+      new WriteOnlyAdapter<NLPResult>() {
+        @Override
+        public void write(JsonWriter out, NLPResult result) throws IOException {
+          if (result == null) {
+            out.nullValue();
+            return;
+          }
+          out.beginObject();
+          out.name("magnitude").value(result.magnitude);
+          out.name("score").value(result.score);
+          out.endObject();
+        }
+      };
+
+  public static final TypeAdapter<Comment> COMMENT =
+      new WriteOnlyAdapter<Comment>() {
+        @Override
+        public void write(JsonWriter out, Comment comment) throws IOException {
+          if (comment == null) {
+            out.nullValue();
+            return;
+          }
+          out.beginObject();
+          if (comment.text != null) {
+            out.name("text").value(comment.text);
+          }
+          if (comment.likes != null) {
+            out.name("likes").value(comment.likes);
+          }
+          out.endObject();
+        }
+      };
+
+  public static final TypeAdapter<VideoInfo> VIDEO_INFO =
+      new WriteOnlyAdapter<VideoInfo>() {
+        @Override
+        public void write(JsonWriter out, VideoInfo info) throws IOException {
+          if (info == null) {
+            out.nullValue();
+            return;
+          }
+          out.beginObject();
+          if (info.name != null) {
+            out.name("name").value(info.name);
+          }
+          if (info.channel != null) {
+            out.name("channel").value(info.channel);
+          }
+          if (info.publishedDate != null) {
+            out.name("publishedDate");
+            writeInstant(out, info.publishedDate);
+          }
+          out.endObject();
+        }
+      };
+
+  /**
+   * Writes a map of strings as a JSON object.
+   *
+   * @param out the writer
+   * @param map the map, whose null values are left out
+   */
+  public static void writeStringMap(JsonWriter out, Map<String, String> map) throws IOException {
+    out.beginObject();
+    for (Map.Entry<String, String> entry : map.entrySet()) {
+      if (entry.getValue() != null) {
+        out.name(String.valueOf(entry.getKey())).value(entry.getValue());
+      }
+    }
+    out.endObject();
+  }
+
+  /** Writes an Instant the way reflection did, as its seconds and nanos fields */
+  private static void writeInstant(JsonWriter out, Instant instant) throws IOException {
+    out.beginObject();
+    out.name("seconds").value(instant.getEpochSecond());
+    out.name("nanos").value(instant.getNano());
+    out.endObject();
+  }
+
+  /** An adapter for a type that is only ever written */
+  private abstract static class WriteOnlyAdapter<T> extends TypeAdapter<T> {
+    @Override
+    public T read(JsonReader in) {
+      throw new UnsupportedOperationException("Responses are only written");
+    }
+  }
+}
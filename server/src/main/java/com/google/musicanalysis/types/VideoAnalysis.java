@@ -2,6 +2,7 @@ package com.google.musicanalysis.types;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Map;
 import java.io.Serializable;
 
 /**
@@ -9,22 +10,78 @@ import java.io.Serializable;
  * backend to the front end
  */
 public class VideoAnalysis implements Serializable {
+  private static final long serialVersionUID = -6902243973079066350L;
+  // Rough memory taken by an object header and its fields, used by estimateSizeInBytes
+  private static final int OBJECT_OVERHEAD = 48;
+
   public final HashMap<String, String> perspectiveMap;
   public final NLPResult magnitudeAndScore;
-  public final ArrayList<String> commentArray;
+  public final ArrayList<Comment> commentArray;
   public final String videoId;
   public final VideoInfo videoInfo;
+  // Parts left out because the API they come from was unavailable, e.g. perspective. Null in an
+  // analysis that was serialized before this was added.
+  public final ArrayList<String> unavailable;
 
   public VideoAnalysis(
       HashMap<String, String> perspectiveMap,
       NLPResult magnitudeAndScore,
-      ArrayList<String> commentArray,
+      ArrayList<Comment> commentArray,
       String videoId,
       VideoInfo videoInfo) {
+    this(perspectiveMap, magnitudeAndScore, commentArray, videoId, videoInfo, new ArrayList<>());
+  }
+
+  public VideoAnalysis(
+      HashMap<String, String> perspectiveMap,
+      NLPResult magnitudeAndScore,
+      ArrayList<Comment> commentArray,
+      String videoId,
+      VideoInfo videoInfo,
+      ArrayList<String> unavailable) {
     this.perspectiveMap = perspectiveMap;
     this.magnitudeAndScore = magnitudeAndScore;
     this.commentArray = commentArray;
     this.videoId = videoId;
     this.videoInfo = videoInfo;
+    this.unavailable = unavailable;
+  }
+
+  /** @return whether some parts of the analysis are missing, in which case it isn't cached */
+  public boolean isPartial() {
+    return unavailable != null && !unavailable.isEmpty();
+  }
+
+  /**
+   * Roughly estimates how much memory this analysis takes up, counting two bytes per character and
+   * a fixed overhead per object. Used to bound the size of the cache.
+   *
+   * @return the estimated size in bytes
+   */
+  public int estimateSizeInBytes() {
+    int size = OBJECT_OVERHEAD + 2 * lengthOf(videoId);
+
+    if (commentArray != null) {
+      for (Comment comment : commentArray) {
+        size += OBJECT_OVERHEAD + (comment == null ? 0 : 2 * lengthOf(comment.text));
+      }
+    }
+    if (perspectiveMap != null) {
+      for (Map.Entry<String, String> entry : perspectiveMap.entrySet()) {
+        size += OBJECT_OVERHEAD + 2 * (lengthOf(entry.getKey()) + lengthOf(entry.getValue()));
+      }
+    }
+    if (magnitudeAndScore != null) {
+      size += OBJECT_OVERHEAD;
+    }
+    if (videoInfo != null) {
+      size += OBJECT_OVERHEAD + 2 * (lengthOf(videoInfo.name) + lengthOf(videoInfo.channel));
+    }
+
+    return size;
+  }
+
+  private static int lengthOf(String s) {
+    return s == null ? 0 : s.length();
   }
 }
@@ -8,6 +8,9 @@ import java.io.Serializable;
  * backend to the front end
  */
 public class VideoInfo implements Serializable {
+  // Pinned, so that changing the constructors doesn't change it
+  private static final long serialVersionUID = -1655591370468627564L;
+
   String name;
   String channel;
   public Instant publishedDate;
@@ -20,4 +23,11 @@ public class VideoInfo implements Serializable {
     OffsetDateTime odt = OffsetDateTime.parse(timeString.substring(1, timeString.length()-1));
     this.publishedDate = odt.toInstant();
   }
+
+  /** Creates video information from values that were already parsed */
+  public VideoInfo(String name, String channel, Instant publishedDate) {
+    this.name = name;
+    this.channel = channel;
+    this.publishedDate = publishedDate;
+  }
 }
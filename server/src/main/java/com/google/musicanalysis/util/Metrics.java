@@ -0,0 +1,36 @@
+package com.google.musicanalysis.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Supplier;
+
+/**
+ * A registry of named values that describe what the server is doing, such as cache hit rates. Each
+ * component registers a supplier once, and /api/metrics reads all of them on demand.
+ */
+public final class Metrics {
+  private static final Map<String, Supplier<?>> gauges = new ConcurrentSkipListMap<>();
+
+  private Metrics() {}
+
+  /**
+   * Registers a value to be reported. Registering the same name again replaces the old supplier.
+   *
+   * @param name the name the value is reported under, e.g. "analysis.singleFlight"
+   * @param gauge supplies the current value. Should be cheap, and return something Gson can
+   *     serialize.
+   */
+  public static void register(String name, Supplier<?> gauge) {
+    gauges.put(name, gauge);
+  }
+
+  /** @return the current value of every registered metric, sorted by name */
+  public static Map<String, Object> snapshot() {
+    Map<String, Object> values = new LinkedHashMap<>();
+    for (Map.Entry<String, Supplier<?>> entry : gauges.entrySet()) {
+      values.put(entry.getKey(), entry.getValue().get());
+    }
+    return values;
+  }
+}
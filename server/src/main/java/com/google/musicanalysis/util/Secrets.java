@@ -4,11 +4,61 @@ import com.google.cloud.secretmanager.v1.SecretManagerServiceClient;
 import com.google.cloud.secretmanager.v1.SecretVersionName;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
+/**
+ * Reads secrets from the Secret Manager. Secrets are kept in memory after the first read, so
+ * looking one up on the hot path is just a map lookup. Once a secret is older than
+ * SECRET_TTL_SECONDS, the cached value is still returned, and a fresh copy is fetched in the
+ * background. If that fetch fails, the old value keeps being used.
+ *
+ * <p>For local development a secret can be provided without the Secret Manager, either through an
+ * environment variable named SECRET_[name], or a file named [name] in the directory given by
+ * SECRETS_DIR.
+ */
 public final class Secrets {
+  private static final Logger LOGGER = Logger.getLogger(Secrets.class.getName());
+
+  private static final long TTL_NANOS =
+      TimeUnit.SECONDS.toNanos(
+          Long.parseLong(System.getenv().getOrDefault("SECRET_TTL_SECONDS", "3600")));
+  private static final String ENV_OVERRIDE_PREFIX = "SECRET_";
+  private static final String SECRETS_DIR = System.getenv("SECRETS_DIR");
+
   private static final Object SYNC_OBJECT = new Object();
   private static SecretManagerServiceClient client;
 
+  private static final ConcurrentHashMap<String, CachedSecret> cache = new ConcurrentHashMap<>();
+  private static final ExecutorService refreshExecutor =
+      Executors.newSingleThreadExecutor(new NamedThreadFactory("secret-refresh"));
+
+  /** A secret value along with when it was fetched */
+  private static class CachedSecret {
+    final byte[] value;
+    final String text;
+    final long fetchedAt;
+    final AtomicBoolean refreshing = new AtomicBoolean();
+
+    CachedSecret(byte[] value) {
+      this.value = value;
+      this.text = new String(value, StandardCharsets.UTF_8);
+      this.fetchedAt = System.nanoTime();
+    }
+
+    boolean isExpired() {
+      return System.nanoTime() - fetchedAt > TTL_NANOS;
+    }
+  }
+
   private static SecretManagerServiceClient getClient() throws IOException {
     if (client == null) {
       synchronized (SYNC_OBJECT) {
@@ -22,12 +72,70 @@ public final class Secrets {
   }
 
   public static byte[] getSecretBytes(String name) throws IOException {
-    var secretClient = getClient();
-    var secretVersionName = SecretVersionName.of("capstone-t99-2020", name, "latest");
-    return secretClient.accessSecretVersion(secretVersionName).getPayload().getData().toByteArray();
+    return getCachedSecret(name).value.clone();
   }
 
   public static String getSecretString(String name) throws IOException {
-    return new String(getSecretBytes(name), StandardCharsets.UTF_8);
+    return getCachedSecret(name).text;
+  }
+
+  /**
+   * Returns the cached copy of a secret, loading it first if this is the first time it is read.
+   * Schedules a background refresh if the cached copy is too old.
+   */
+  private static CachedSecret getCachedSecret(String name) throws IOException {
+    CachedSecret cached = getOrLoad(name);
+    if (cached.isExpired() && cached.refreshing.compareAndSet(false, true)) {
+      refreshExecutor.execute(() -> refresh(name, cached));
+    }
+
+    return cached;
+  }
+
+  /**
+   * Loads a secret outside the map, so that a slow Secret Manager call doesn't hold a lock other
+   * secrets need. Threads that race on the first read each load it, and the first copy is kept.
+   */
+  private static CachedSecret getOrLoad(String name) throws IOException {
+    CachedSecret cached = cache.get(name);
+    if (cached != null) {
+      return cached;
+    }
+
+    CachedSecret loaded = new CachedSecret(loadSecret(name));
+    CachedSecret raced = cache.putIfAbsent(name, loaded);
+    return raced == null ? loaded : raced;
+  }
+
+  /**
+   * Fetches a new copy of a cached secret. On failure, the stale copy stays in the cache and the
+   * refresh is retried the next time the secret is read.
+   */
+  private static void refresh(String name, CachedSecret stale) {
+    try {
+      cache.replace(name, stale, new CachedSecret(loadSecret(name)));
+    } catch (IOException | RuntimeException e) {
+      LOGGER.log(Level.WARNING, e, () -> "Could not refresh secret " + name + ", using old value");
+      stale.refreshing.set(false);
+    }
+  }
+
+  /** Reads a secret from a local override if there is one, and from the Secret Manager if not */
+  private static byte[] loadSecret(String name) throws IOException {
+    String override = System.getenv(ENV_OVERRIDE_PREFIX + name);
+    if (override != null) {
+      return override.getBytes(StandardCharsets.UTF_8);
+    }
+
+    if (SECRETS_DIR != null) {
+      Path secretFile = Paths.get(SECRETS_DIR, name);
+      if (Files.isRegularFile(secretFile)) {
+        return Files.readAllBytes(secretFile);
+      }
+    }
+
+    var secretClient = getClient();
+    var secretVersionName = SecretVersionName.of("capstone-t99-2020", name, "latest");
+    return secretClient.accessSecretVersion(secretVersionName).getPayload().getData().toByteArray();
   }
 }
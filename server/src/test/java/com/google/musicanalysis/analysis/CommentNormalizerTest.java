@@ -0,0 +1,142 @@
+package com.google.musicanalysis.analysis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import com.google.musicanalysis.types.Comment;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+
+/** Checks that comments are cleaned up exactly like the regexes the normalizer replaced did */
+public class CommentNormalizerTest {
+  // Characters at the edges of what is stripped, and surrogates that do or don't pair up
+  private static final char[] EDGES = {
+    'a', 'Z', ' ', '\t', '\n', '\u00a0', '\u3000', '"', '.', '!', '?', '\u00a9', '\u00ae',
+    '\u1fff', '\u2000', '\u3300', '\u3301', '\ud83b', '\ud83c', '\ud83d', '\ud83e', '\ud83f',
+    '\ucfff', '\ud000', '\ud7ff', '\ud800', '\udbff', '\udc00', '\ude00', '\udfff', '\ue000',
+    '\uffff', '\u00e9'
+  };
+
+  private final AnalysisPipeline pipeline = new AnalysisPipeline("");
+
+  private void assertSameAsLegacy(String... texts) {
+    ArrayList<Comment> legacy = new ArrayList<>();
+    ArrayList<Comment> current = new ArrayList<>();
+    for (String text : texts) {
+      legacy.add(new Comment(text, 1));
+      current.add(new Comment(text, 1));
+    }
+    ArrayList<Comment> legacyFiltered = LegacyCommentFilter.filterComments(legacy);
+    ArrayList<Comment> filtered = pipeline.filterComments(current);
+
+    String message = describe(texts);
+    assertEquals(message, legacyFiltered.size(), filtered.size());
+    for (int i = 0; i < filtered.size(); i++) {
+      assertEquals(message, legacyFiltered.get(i).text, filtered.get(i).text);
+    }
+    assertEquals(
+        message,
+        LegacyCommentFilter.convertToString(legacyFiltered),
+        pipeline.convertToString(filtered));
+  }
+
+  /** @return the texts as hex chars, since most of them don't print */
+  private static String describe(String... texts) {
+    StringBuilder description = new StringBuilder();
+    for (String text : texts) {
+      for (int i = 0; i < text.length(); i++) {
+        description.append(String.format("%04x ", (int) text.charAt(i)));
+      }
+      description.append("| ");
+    }
+    return description.toString();
+  }
+
+  @Test
+  public void keepsTextWithNothingToStrip() {
+    String text = "Nothing to strip here";
+
+    assertSame(text, new CommentNormalizer().normalize(text));
+  }
+
+  @Test
+  public void dropsBlankText() {
+    assertNull(new CommentNormalizer().normalize(" \u00a9\"\u2764\t"));
+  }
+
+  @Test
+  public void keepsEmojiLikeTheRegex() {
+    assertSameAsLegacy("\ud83d\ude00", "a\ud83c\udfb5b", "\ud83d\ud83d\ude00");
+  }
+
+  @Test
+  public void everyShortStringOfEdgeCharacters() {
+    for (int length = 0; length <= 3; length++) {
+      char[] chars = new char[length];
+      int combinations = (int) Math.pow(EDGES.length, length);
+      for (int combination = 0; combination < combinations; combination++) {
+        int rest = combination;
+        for (int i = 0; i < length; i++) {
+          chars[i] = EDGES[rest % EDGES.length];
+          rest /= EDGES.length;
+        }
+        assertSameAsLegacy(new String(chars));
+      }
+    }
+  }
+
+  @Test
+  public void everyCharNextToASurrogate() {
+    char[] neighbours = {'\ud83c', '\ud83e', '\ud800', '\udc00', '\udfff', '"'};
+    for (int c = 0; c <= Character.MAX_VALUE; c++) {
+      for (char neighbour : neighbours) {
+        assertSameAsLegacy("" + (char) c + neighbour, "" + neighbour + (char) c);
+      }
+    }
+  }
+
+  @Test
+  public void randomBatches() {
+    Random random = new Random(42);
+    for (int batch = 0; batch < 2000; batch++) {
+      String[] texts = new String[1 + random.nextInt(6)];
+      for (int i = 0; i < texts.length; i++) {
+        StringBuilder text = new StringBuilder();
+        for (int length = random.nextInt(12); length > 0; length--) {
+          text.append(
+              random.nextInt(4) == 0
+                  ? (char) random.nextInt(Character.MAX_VALUE + 1)
+                  : EDGES[random.nextInt(EDGES.length)]);
+        }
+        if (random.nextInt(5) == 0) {
+          text.appendCodePoint(0x1f600 + random.nextInt(80));
+        }
+        texts[i] = text.toString();
+      }
+      assertSameAsLegacy(texts);
+    }
+  }
+
+  @Test
+  public void batchesOverThePerspectiveBudget() {
+    Random random = new Random(7);
+    for (int batch = 0; batch < 20; batch++) {
+      List<String> texts = new ArrayList<>();
+      for (int i = 0; i < 100; i++) {
+        char[] text = new char[300];
+        for (int j = 0; j < text.length; j++) {
+          text[j] = EDGES[random.nextInt(EDGES.length)];
+        }
+        texts.add(new String(text));
+      }
+      assertSameAsLegacy(texts.toArray(new String[0]));
+    }
+    String[] longTexts = new String[30];
+    Arrays.fill(longTexts, "x".repeat(1000));
+    assertSameAsLegacy(longTexts);
+  }
+}
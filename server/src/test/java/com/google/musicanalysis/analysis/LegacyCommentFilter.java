@@ -0,0 +1,67 @@
+package com.google.musicanalysis.analysis;
+
+import com.google.musicanalysis.types.Comment;
+import java.util.ArrayList;
+
+/** The regex based comment filtering that CommentNormalizer replaced, for tests and benchmarks */
+final class LegacyCommentFilter {
+  private LegacyCommentFilter() {}
+
+  private static String filterComment(String comment) {
+    String filteredComment =
+        comment.replaceAll(
+            "(\u00a9|\u00ae|[\u2000-\u3300]|\ud83c[\ud000-\udfff]|\ud83d[\ud000-\udfff]"
+                + "|\ud83e[\ud000-\udfff])",
+            "");
+    return filteredComment.replace("\"", "");
+  }
+
+  static ArrayList<Comment> filterComments(ArrayList<Comment> comments) {
+    ArrayList<Comment> filtered = new ArrayList<>(comments.size());
+    for (Comment comment : comments) {
+      comment.text = filterComment(comment.text);
+      if (!comment.text.isBlank()) {
+        filtered.add(comment);
+      }
+    }
+    return filtered;
+  }
+
+  private static int utf8Length(String text) {
+    int length = 0;
+    for (int i = 0; i < text.length(); i++) {
+      char c = text.charAt(i);
+      if (c < 0x80) {
+        length += 1;
+      } else if (c < 0x800) {
+        length += 2;
+      } else if (Character.isHighSurrogate(c)) {
+        length += 4;
+        i++;
+      } else {
+        length += 3;
+      }
+    }
+    return length;
+  }
+
+  static String convertToString(ArrayList<Comment> comments) {
+    StringBuilder res = new StringBuilder();
+    int bytes = 0;
+    for (Comment comment : comments) {
+      String commentText = comment.text.replace("\"", "");
+      String lastCharacter = commentText.substring(commentText.length() - 1);
+      if (!lastCharacter.matches("\\.|!|\\?")) {
+        commentText += ". ";
+      } else {
+        commentText += " ";
+      }
+      bytes += utf8Length(commentText);
+      if (bytes > 20000) {
+        break;
+      }
+      res.append(commentText);
+    }
+    return res.toString();
+  }
+}
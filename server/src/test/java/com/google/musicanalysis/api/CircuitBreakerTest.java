@@ -0,0 +1,73 @@
+package com.google.musicanalysis.api;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+/** Drives a breaker on a fake clock, with calls that finish in an order the test picks */
+public class CircuitBreakerTest {
+  private static final long SLOW_CALL_NANOS = TimeUnit.SECONDS.toNanos(1);
+  // Longer than the breaker stays open
+  private static final long WAIT_NANOS = TimeUnit.HOURS.toNanos(1);
+
+  private long now;
+  private final CircuitBreaker breaker = new CircuitBreaker(SLOW_CALL_NANOS, () -> now);
+
+  /** Fails enough calls in a row to open the breaker */
+  private void open() {
+    for (int i = 0; i < 20 && breaker.isClosed(); i++) {
+      breaker.record(breaker.allowRequest(), true, 0);
+    }
+    assertFalse(breaker.isClosed());
+    assertEquals(CircuitBreaker.NOT_ALLOWED, breaker.allowRequest());
+  }
+
+  @Test
+  public void goodTrialClosesTheBreaker() {
+    open();
+    now += WAIT_NANOS;
+
+    long trial = breaker.allowRequest();
+    assertNotEquals(CircuitBreaker.NOT_ALLOWED, trial);
+    // Only one trial at a time
+    assertEquals(CircuitBreaker.NOT_ALLOWED, breaker.allowRequest());
+
+    breaker.record(trial, false, 0);
+    assertTrue(breaker.isClosed());
+  }
+
+  @Test
+  public void callFromBeforeTheBreakerOpenedDoesNotDecideTheTrial() {
+    long stale = breaker.allowRequest();
+    open();
+    now += WAIT_NANOS;
+    long trial = breaker.allowRequest();
+
+    breaker.record(stale, false, 0);
+    assertFalse(breaker.isClosed());
+
+    breaker.record(trial, true, 0);
+    assertFalse(breaker.isClosed());
+    assertEquals(CircuitBreaker.NOT_ALLOWED, breaker.allowRequest());
+  }
+
+  @Test
+  public void trialThatWasGivenUpOnDoesNotDecideTheNextOne() {
+    open();
+    now += WAIT_NANOS;
+    long firstTrial = breaker.allowRequest();
+    now += 2 * SLOW_CALL_NANOS;
+    long secondTrial = breaker.allowRequest();
+    assertNotEquals(CircuitBreaker.NOT_ALLOWED, secondTrial);
+
+    breaker.record(firstTrial, false, 0);
+    assertFalse(breaker.isClosed());
+
+    breaker.record(secondTrial, false, 0);
+    assertTrue(breaker.isClosed());
+  }
+}
@@ -0,0 +1,148 @@
+package com.google.musicanalysis.api;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToLongFunction;
+import org.junit.Test;
+
+/**
+ * Simulates calls against a limiter on a fake clock. As many calls as the limiter allows are kept
+ * in flight, and each one is released once its simulated latency has passed.
+ */
+public class UpstreamLimiterTest {
+  private static final int MAX_LIMIT = 32;
+  private static final String[] YOUTUBE_ENDPOINTS = {
+    "/youtube/v3/search", "/youtube/v3/commentThreads", "/youtube/v3/videos"
+  };
+
+  private final Random random = new Random(99);
+  private long now;
+  private final UpstreamLimiter limiter =
+      new UpstreamLimiter("test", 1e9, 1e9, MAX_LIMIT, () -> now);
+
+  /** A call in flight, released at doneAt */
+  private static final class Call {
+    final long doneAt;
+    final UpstreamLimiter.Permit permit;
+
+    Call(long doneAt, UpstreamLimiter.Permit permit) {
+      this.doneAt = doneAt;
+      this.permit = permit;
+    }
+  }
+
+  private final PriorityQueue<Call> inFlight =
+      new PriorityQueue<>((a, b) -> Long.compare(a.doneAt, b.doneAt));
+
+  /**
+   * Runs calls to random endpoints until the given number of them have finished.
+   *
+   * @param endpoints the endpoints the calls are spread over
+   * @param latencyOf picks the latency of a call to an endpoint, in nanos
+   * @return the concurrency limit afterwards
+   */
+  private double simulate(int calls, String[] endpoints, ToLongFunction<String> latencyOf) {
+    for (int i = 0; i < calls; i++) {
+      while (true) {
+        String endpoint = endpoints[random.nextInt(endpoints.length)];
+        UpstreamLimiter.Permit permit = limiter.tryAcquire(1, endpoint);
+        if (permit == null) {
+          break;
+        }
+        inFlight.add(new Call(now + latencyOf.applyAsLong(endpoint), permit));
+      }
+      Call next = inFlight.poll();
+      now = next.doneAt;
+      next.permit.release(200);
+    }
+    return (double) limiter.getStats().get("concurrencyLimit");
+  }
+
+  /** Searches are slow, comment pages less so and video lookups fast, each with some jitter */
+  private long youtubeLatency(String endpoint) {
+    long millis =
+        endpoint.endsWith("search") ? 400 : endpoint.endsWith("commentThreads") ? 150 : 50;
+    return (long) (TimeUnit.MILLISECONDS.toNanos(millis) * Math.exp(random.nextGaussian() * 0.3));
+  }
+
+  @Test
+  public void searchesOverTheDailyQuotaSayWhenToComeBack() {
+    // YouTube's default quota, of which each search takes 100 units
+    UpstreamLimiter youtube =
+        new UpstreamLimiter("youtube", 10000.0 / TimeUnit.DAYS.toSeconds(1), 1000, 32, () -> now);
+    for (int i = 0; i < 10; i++) {
+      youtube.acquire(100, "/youtube/v3/search").join().release(200);
+    }
+
+    CompletableFuture<UpstreamLimiter.Permit> rejected = youtube.acquire(100, "/youtube/v3/search");
+    try {
+      rejected.join();
+    } catch (CompletionException e) {
+      // 100 units refill in 864 seconds
+      long retryAfter = ((UpstreamRateLimitedException) e.getCause()).getRetryAfterSeconds();
+      assertTrue("retry after " + retryAfter, retryAfter >= 864 && retryAfter <= 866);
+      return;
+    }
+    throw new AssertionError("search wasn't rejected");
+  }
+
+  @Test
+  public void mixedEndpointsKeepTheLimitUp() {
+    double limit = simulate(5000, YOUTUBE_ENDPOINTS, this::youtubeLatency);
+
+    assertEquals(MAX_LIMIT, limit, 0);
+  }
+
+  @Test
+  public void latencyVaryingWithTextSizeKeepsTheLimitUp() {
+    // Perspective takes longer the more text it is sent, and texts range from a few words to pages
+    double limit =
+        simulate(
+            5000,
+            new String[] {"/v1alpha1/comments:analyze"},
+            endpoint -> TimeUnit.MILLISECONDS.toNanos(100 + random.nextInt(1500)));
+
+    assertEquals(MAX_LIMIT, limit, 0);
+  }
+
+  @Test
+  public void singleSlowCallDoesNotBackOff() {
+    simulate(2000, YOUTUBE_ENDPOINTS, this::youtubeLatency);
+    simulate(1, YOUTUBE_ENDPOINTS, endpoint -> 20 * youtubeLatency(endpoint));
+    double limit = simulate(50, YOUTUBE_ENDPOINTS, this::youtubeLatency);
+
+    assertEquals(MAX_LIMIT, limit, 0);
+  }
+
+  @Test
+  public void sustainedSlowdownBacksOff() {
+    simulate(2000, YOUTUBE_ENDPOINTS, this::youtubeLatency);
+    double limit = simulate(100, YOUTUBE_ENDPOINTS, endpoint -> 4 * youtubeLatency(endpoint));
+
+    assertTrue("limit was " + limit, limit < MAX_LIMIT / 2);
+  }
+
+  @Test
+  public void slowerButHealthyApiIsFollowed() {
+    simulate(2000, YOUTUBE_ENDPOINTS, this::youtubeLatency);
+    double limit = simulate(5000, YOUTUBE_ENDPOINTS, endpoint -> 4 * youtubeLatency(endpoint));
+
+    assertEquals(MAX_LIMIT, limit, 0);
+  }
+
+  @Test
+  public void throttledCallsBackOff() {
+    simulate(2000, YOUTUBE_ENDPOINTS, this::youtubeLatency);
+    Call call = inFlight.poll();
+    now = call.doneAt;
+    call.permit.release(429);
+
+    assertEquals(MAX_LIMIT / 2, (double) limiter.getStats().get("concurrencyLimit"), 1);
+  }
+}
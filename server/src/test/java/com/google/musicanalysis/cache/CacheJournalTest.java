@@ -0,0 +1,103 @@
+package com.google.musicanalysis.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import com.google.musicanalysis.types.CacheValue;
+import com.google.musicanalysis.types.VideoAnalysis;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import javax.crypto.spec.SecretKeySpec;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/** Runs journals against a temporary directory, with a map standing in for the cache */
+public class CacheJournalTest {
+  private static final SecretKeySpec KEY =
+      new SecretKeySpec("journal test key".getBytes(StandardCharsets.UTF_8), "Blowfish");
+
+  @Rule public final TemporaryFolder folder = new TemporaryFolder();
+
+  // What the cache holds. Removing an entry without journaling a delete is an eviction.
+  private final Map<String, CacheValue> cache = new HashMap<>();
+
+  private CacheJournal open() throws IOException {
+    return open(Duration.ofDays(1));
+  }
+
+  private CacheJournal open(Duration entryLifetime) throws IOException {
+    cache.clear();
+    CacheJournal journal = new CacheJournal(folder.getRoot().toPath(), KEY, entryLifetime);
+    journal.replay(cache::put, cache::remove);
+    journal.start(() -> new HashMap<>(cache));
+    return journal;
+  }
+
+  private void put(CacheJournal journal, String requestUrl, String videoId) {
+    CacheValue value = new CacheValue(new VideoAnalysis(null, null, null, videoId, null));
+    cache.put(requestUrl, value);
+    journal.appendPut(requestUrl, value);
+  }
+
+  private static String videoIdOf(CacheValue value) {
+    return value.responseData.videoId;
+  }
+
+  @Test
+  public void entryUpdatedThenEvictedKeepsItsNewestVersion() throws IOException {
+    CacheJournal journal = open();
+    put(journal, "a", "first");
+    journal.close();
+
+    journal = open();
+    assertEquals("first", videoIdOf(journal.lookup("a")));
+    put(journal, "a", "second");
+    // Evicted before the next checkpoint
+    cache.remove("a");
+    journal.close();
+
+    journal = open();
+    assertEquals("second", videoIdOf(journal.lookup("a")));
+    journal.close();
+  }
+
+  @Test
+  public void deletedEntryStaysDeleted() throws IOException {
+    CacheJournal journal = open();
+    put(journal, "a", "first");
+    journal.close();
+
+    journal = open();
+    cache.remove("a");
+    journal.appendDelete("a");
+    assertNull(journal.lookup("a"));
+    journal.close();
+
+    journal = open();
+    assertNull(journal.lookup("a"));
+    journal.close();
+  }
+
+  @Test
+  public void expiredEntryIsNotCarriedOver() throws IOException {
+    CacheJournal journal = open();
+    put(journal, "a", "first");
+    journal.close();
+
+    // Every entry is expired as soon as it is written
+    journal = open(Duration.ZERO);
+    assertNull(journal.lookup("a"));
+    put(journal, "b", "second");
+    cache.clear();
+    journal.close();
+
+    journal = open();
+    assertNull(journal.lookup("a"));
+    assertNull(journal.lookup("b"));
+    journal.close();
+  }
+}
@@ -0,0 +1,61 @@
+package com.google.musicanalysis.site;
+
+import static org.junit.Assert.assertEquals;
+
+import com.google.musicanalysis.analysis.AnalysisPipeline;
+import com.google.musicanalysis.types.Comment;
+import com.google.musicanalysis.types.NLPResult;
+import com.google.musicanalysis.types.VideoInfo;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import org.junit.Test;
+
+public class AnalysisEventsTest {
+  /** Writes down the stage events it gets, in order */
+  private static final class Recorder implements AnalysisPipeline.Listener {
+    final List<String> events = new ArrayList<>();
+
+    @Override
+    public void onVideoInfo(VideoInfo videoInfo) {
+      events.add("videoInfo");
+    }
+
+    @Override
+    public void onCommentScored(
+        Comment comment, NLPResult sentiment, NLPResult weightedSentiment) {
+      events.add("comment " + comment.text);
+    }
+
+    @Override
+    public void onPerspective(HashMap<String, String> perspectiveMap) {
+      events.add("perspective");
+    }
+  }
+
+  private final AnalysisEvents events = new AnalysisEvents();
+
+  private void scoreComment(String text) {
+    events.onCommentScored(new Comment(text, 0), new NLPResult(0, 0), new NLPResult(0, 0));
+  }
+
+  @Test
+  public void lateListenerGetsEarlierEventsFirst() {
+    Recorder early = new Recorder();
+    events.subscribe(early);
+    scoreComment("first");
+    events.onVideoInfo(new VideoInfo("name", "channel", Instant.EPOCH));
+
+    Recorder late = new Recorder();
+    events.subscribe(late);
+    scoreComment("second");
+    events.onPerspective(new HashMap<>());
+
+    List<String> expected =
+        Arrays.asList("comment first", "videoInfo", "comment second", "perspective");
+    assertEquals(expected, early.events);
+    assertEquals(expected, late.events);
+  }
+}
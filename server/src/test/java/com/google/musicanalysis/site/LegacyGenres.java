@@ -0,0 +1,50 @@
+package com.google.musicanalysis.site;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import java.util.HashMap;
+
+/**
+ * YoutubeGenres as it was before genre ids, counting genres by name and sent with Gson's
+ * reflection. For tests and benchmarks.
+ */
+final class LegacyGenres {
+  public int totalLiked;
+  public HashMap<String, Integer> genreData = new HashMap<String, Integer>();
+  public int totalMusic = 0;
+  public int maxGenreCount = 0;
+
+  void calculateMusicCount(JsonArray videos) {
+    for (int i = 0; i < videos.size(); i++) {
+      JsonObject topicDetails = videos.get(i).getAsJsonObject().getAsJsonObject("topicDetails");
+      if (topicDetails == null) {
+        continue;
+      }
+      JsonArray topicCategories = topicDetails.getAsJsonArray("topicCategories");
+      boolean isMusic = false;
+      int totalSubgenres = 0;
+      for (int j = 0; j < topicCategories.size(); j++) {
+        String link = topicCategories.get(j).toString();
+        String topic = link.substring(link.lastIndexOf('/') + 1);
+        topic = topic.replaceAll("\"", "");
+        topic = topic.replaceAll("_", " ");
+        if (topic.equals("Music")) {
+          isMusic = true;
+          totalMusic++;
+        } else if (topic.toLowerCase().contains("music")) {
+          totalSubgenres++;
+          updateGenre(topic);
+        }
+      }
+      if (isMusic && totalSubgenres == 0) {
+        updateGenre("Other music");
+      }
+    }
+  }
+
+  private void updateGenre(String topic) {
+    int count = genreData.containsKey(topic) ? genreData.get(topic) : 0;
+    genreData.put(topic, count + 1);
+    maxGenreCount = Math.max(count + 1, maxGenreCount);
+  }
+}
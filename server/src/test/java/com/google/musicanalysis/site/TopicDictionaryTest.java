@@ -0,0 +1,19 @@
+package com.google.musicanalysis.site;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class TopicDictionaryTest {
+  @Test
+  public void madeUpGenresDoNotGrowTheDictionaryPastItsLimit() {
+    for (int i = 0; i < 10_000; i++) {
+      TopicDictionary.classify("https://en.wikipedia.org/wiki/Made_up_music_" + i);
+    }
+    assertTrue(TopicDictionary.genreCount() <= TopicDictionary.MAX_GENRES);
+    assertEquals(
+        TopicDictionary.OTHER_MUSIC,
+        TopicDictionary.classify("https://en.wikipedia.org/wiki/One_more_made_up_music"));
+  }
+}
@@ -0,0 +1,83 @@
+package com.google.musicanalysis.site;
+
+import static org.junit.Assert.assertEquals;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
+import java.io.StringWriter;
+import org.junit.Test;
+
+/** Checks that the genres are counted and written as they were before genre ids were used */
+public class YoutubeGenresTest {
+  private static final String WIKI = "https://en.wikipedia.org/wiki/";
+
+  private static JsonObject video(String... topics) {
+    JsonObject video = new JsonObject();
+    if (topics.length > 0) {
+      JsonArray topicCategories = new JsonArray();
+      for (String topic : topics) {
+        topicCategories.add(WIKI + topic);
+      }
+      JsonObject topicDetails = new JsonObject();
+      topicDetails.add("topicCategories", topicCategories);
+      video.add("topicDetails", topicDetails);
+    }
+    return video;
+  }
+
+  private static String write(YoutubeGenres genres) throws IOException {
+    StringWriter json = new StringWriter();
+    JsonWriter writer = new JsonWriter(json);
+    writer.setHtmlSafe(true);
+    YoutubeGenres.JSON_ADAPTER.write(writer, genres);
+    writer.flush();
+    return json.toString();
+  }
+
+  /** Genre names are written in id order rather than hash order, so the parsed JSON is compared */
+  private static void assertSameAsLegacy(JsonArray videos) throws IOException {
+    LegacyGenres legacy = new LegacyGenres();
+    legacy.totalLiked = videos.size();
+    legacy.calculateMusicCount(videos);
+    YoutubeGenres genres = new YoutubeGenres();
+    genres.totalLiked = videos.size();
+    genres.calculateMusicCount(videos);
+
+    assertEquals(
+        JsonParser.parseString(new Gson().toJson(legacy)), JsonParser.parseString(write(genres)));
+  }
+
+  @Test
+  public void countsLikeLegacy() throws IOException {
+    JsonArray videos = new JsonArray();
+    videos.add(video("Music", "Pop_music"));
+    videos.add(video("Music"));
+    videos.add(video("Music", "Pop_music", "Hip_hop_music"));
+    videos.add(video("Entertainment"));
+    videos.add(video());
+    videos.add(video("Music", "Music_of_Latin_America", "Rock_music"));
+    videos.add(video("Music_video_game", "Video_game_culture"));
+    videos.add(video("Music", "Rock_music"));
+
+    assertSameAsLegacy(videos);
+  }
+
+  @Test
+  public void countsUnknownTopicsLikeLegacy() throws IOException {
+    JsonArray videos = new JsonArray();
+    videos.add(video("Music", "Sea_shanty_music"));
+    videos.add(video("Polka_MUSIC"));
+    videos.add(video("Knowledge", "Music", "Tech_&_<music>"));
+
+    assertSameAsLegacy(videos);
+  }
+
+  @Test
+  public void writesNoGenres() throws IOException {
+    assertSameAsLegacy(new JsonArray());
+  }
+}
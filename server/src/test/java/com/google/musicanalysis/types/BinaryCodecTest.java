@@ -0,0 +1,189 @@
+package com.google.musicanalysis.types;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Random;
+import org.junit.Test;
+
+public class BinaryCodecTest {
+  private static final Instant CACHED_AT = Instant.ofEpochSecond(1600000000, 123456789);
+
+  private static CacheValue roundTrip(VideoAnalysis analysis, Instant timestamp)
+      throws IOException {
+    CacheValue decoded =
+        BinaryCodec.decode(BinaryCodec.encode(new CacheValue(analysis, timestamp)));
+    assertEquals(timestamp, decoded.timestamp);
+    return decoded;
+  }
+
+  private static void assertSameAnalysis(VideoAnalysis expected, VideoAnalysis actual) {
+    if (expected == null) {
+      assertNull(actual);
+      return;
+    }
+    assertEquals(expected.perspectiveMap, actual.perspectiveMap);
+    if (expected.magnitudeAndScore == null) {
+      assertNull(actual.magnitudeAndScore);
+    } else {
+      assertEquals(expected.magnitudeAndScore.magnitude, actual.magnitudeAndScore.magnitude, 0);
+      assertEquals(expected.magnitudeAndScore.score, actual.magnitudeAndScore.score, 0);
+    }
+    if (expected.commentArray == null) {
+      assertNull(actual.commentArray);
+    } else {
+      assertEquals(expected.commentArray.size(), actual.commentArray.size());
+      for (int i = 0; i < expected.commentArray.size(); i++) {
+        Comment comment = expected.commentArray.get(i);
+        if (comment == null) {
+          assertNull(actual.commentArray.get(i));
+        } else {
+          assertEquals(comment.text, actual.commentArray.get(i).text);
+          assertEquals(comment.likes, actual.commentArray.get(i).likes);
+        }
+      }
+    }
+    assertEquals(expected.videoId, actual.videoId);
+    if (expected.videoInfo == null) {
+      assertNull(actual.videoInfo);
+    } else {
+      assertEquals(expected.videoInfo.name, actual.videoInfo.name);
+      assertEquals(expected.videoInfo.channel, actual.videoInfo.channel);
+      assertEquals(expected.videoInfo.publishedDate, actual.videoInfo.publishedDate);
+    }
+  }
+
+  private static void assertMalformed(byte[] bytes) {
+    try {
+      BinaryCodec.decode(bytes);
+      fail("Decoded " + Arrays.toString(bytes));
+    } catch (IOException e) {
+      // Expected
+    }
+  }
+
+  @Test
+  public void roundTripsTypicalAnalysis() throws IOException {
+    VideoAnalysis analysis = SampleAnalyses.typical(20);
+
+    assertSameAnalysis(analysis, roundTrip(analysis, CACHED_AT).responseData);
+  }
+
+  @Test
+  public void roundTripsNulls() throws IOException {
+    assertSameAnalysis(null, roundTrip(null, CACHED_AT).responseData);
+    VideoAnalysis empty = SampleAnalyses.empty();
+    assertSameAnalysis(empty, roundTrip(empty, CACHED_AT).responseData);
+
+    ArrayList<Comment> comments = new ArrayList<>();
+    comments.add(null);
+    comments.add(new Comment(null, null));
+    comments.add(new Comment("", 0));
+    VideoAnalysis analysis =
+        new VideoAnalysis(
+            new HashMap<>(), null, comments, "", new VideoInfo(null, null, (Instant) null));
+    assertSameAnalysis(analysis, roundTrip(analysis, CACHED_AT).responseData);
+  }
+
+  @Test
+  public void roundTripsNegativeAndExtremeNumbers() throws IOException {
+    ArrayList<Comment> comments = new ArrayList<>();
+    for (int likes : new int[] {-1, -64, -65, 63, 64, Integer.MIN_VALUE, Integer.MAX_VALUE}) {
+      comments.add(new Comment("likes " + likes, likes));
+    }
+    VideoAnalysis analysis =
+        new VideoAnalysis(
+            null,
+            new NLPResult(-0.0, Double.NaN),
+            comments,
+            "id",
+            new VideoInfo("name", "channel", Instant.ofEpochSecond(-1, 999999999)));
+
+    assertSameAnalysis(analysis, roundTrip(analysis, CACHED_AT).responseData);
+    assertSameAnalysis(analysis, roundTrip(analysis, Instant.MIN).responseData);
+    assertSameAnalysis(analysis, roundTrip(analysis, Instant.MAX).responseData);
+  }
+
+  @Test
+  public void startsWithVersion() {
+    byte[] bytes = BinaryCodec.encode(new CacheValue(SampleAnalyses.typical(1), CACHED_AT));
+
+    assertEquals(BinaryCodec.VERSION, bytes[0]);
+  }
+
+  @Test
+  public void rejectsUnknownVersion() {
+    byte[] bytes = BinaryCodec.encode(new CacheValue(SampleAnalyses.typical(1), CACHED_AT));
+    bytes[0] = BinaryCodec.VERSION + 1;
+
+    assertMalformed(bytes);
+  }
+
+  @Test
+  public void rejectsEveryTruncation() {
+    byte[] bytes = BinaryCodec.encode(new CacheValue(SampleAnalyses.typical(5), CACHED_AT));
+
+    for (int length = 0; length < bytes.length; length++) {
+      assertMalformed(Arrays.copyOf(bytes, length));
+    }
+  }
+
+  @Test
+  public void rejectsTrailingBytes() {
+    byte[] bytes = BinaryCodec.encode(new CacheValue(SampleAnalyses.typical(1), CACHED_AT));
+
+    assertMalformed(Arrays.copyOf(bytes, bytes.length + 1));
+  }
+
+  @Test
+  public void rejectsOverlongVarint() {
+    byte[] bytes = new byte[12];
+    bytes[0] = BinaryCodec.VERSION;
+    Arrays.fill(bytes, 1, bytes.length, (byte) 0xff);
+
+    assertMalformed(bytes);
+  }
+
+  @Test
+  public void rejectsCountsLargerThanInput() {
+    // Timestamp 0.0, then an analysis whose perspective map claims 2^31 entries
+    byte[] bytes = {
+      BinaryCodec.VERSION, 0, 0, 1, (byte) 0x81, (byte) 0x80, (byte) 0x80, (byte) 0x80, 8
+    };
+
+    assertMalformed(bytes);
+  }
+
+  @Test
+  public void corruptedInputFailsWithIOExceptionOnly() {
+    byte[] bytes = BinaryCodec.encode(new CacheValue(SampleAnalyses.typical(5), CACHED_AT));
+    Random random = new Random(9);
+
+    for (int i = 0; i < 20000; i++) {
+      byte[] corrupted = bytes.clone();
+      for (int flips = 1 + random.nextInt(3); flips > 0; flips--) {
+        corrupted[1 + random.nextInt(corrupted.length - 1)] = (byte) random.nextInt(256);
+      }
+      try {
+        BinaryCodec.decode(corrupted);
+      } catch (IOException e) {
+        // Either outcome is fine, as long as nothing else is thrown
+      }
+    }
+  }
+
+  @Test
+  public void encodingIsStable() throws IOException {
+    CacheValue value = new CacheValue(SampleAnalyses.typical(3), CACHED_AT);
+    byte[] bytes = BinaryCodec.encode(value);
+
+    assertArrayEquals(bytes, BinaryCodec.encode(BinaryCodec.decode(bytes)));
+  }
+}
@@ -0,0 +1,104 @@
+package com.google.musicanalysis.types;
+
+import static org.junit.Assert.assertEquals;
+
+import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import org.junit.Test;
+
+/** Checks that the adapters write exactly what Gson's reflection wrote for the same objects */
+public class JsonAdaptersTest {
+  private static final Gson GSON = new Gson();
+
+  /** Writes a value the way the servlets do, HTML-safe like Gson's default */
+  private static <T> String write(TypeAdapter<T> adapter, T value) throws IOException {
+    StringWriter json = new StringWriter();
+    JsonWriter writer = new JsonWriter(json);
+    writer.setHtmlSafe(true);
+    adapter.write(writer, value);
+    writer.flush();
+    return json.toString();
+  }
+
+  /**
+   * A complete analysis has an empty unavailable list, which the adapter leaves out so the
+   * response stays as it was before the field was added. Gson leaves out a null list instead.
+   */
+  private static VideoAnalysis asGsonWrote(VideoAnalysis analysis) {
+    return new VideoAnalysis(
+        analysis.perspectiveMap,
+        analysis.magnitudeAndScore,
+        analysis.commentArray,
+        analysis.videoId,
+        analysis.videoInfo,
+        analysis.isPartial() ? analysis.unavailable : null);
+  }
+
+  private static void assertSameAsGson(VideoAnalysis analysis) throws IOException {
+    assertEquals(
+        GSON.toJson(asGsonWrote(analysis)), write(JsonAdapters.VIDEO_ANALYSIS, analysis));
+  }
+
+  @Test
+  public void typicalAnalysis() throws IOException {
+    assertSameAsGson(SampleAnalyses.typical(20));
+  }
+
+  @Test
+  public void analysisWithNullFields() throws IOException {
+    assertSameAsGson(SampleAnalyses.empty());
+
+    ArrayList<Comment> comments = new ArrayList<>();
+    comments.add(null);
+    comments.add(new Comment(null, null));
+    comments.add(new Comment("", 0));
+    HashMap<String, String> perspectiveMap = new HashMap<>();
+    perspectiveMap.put("TOXICITY", null);
+    perspectiveMap.put("INSULT", "0.5");
+    assertSameAsGson(
+        new VideoAnalysis(
+            perspectiveMap, null, comments, "", new VideoInfo(null, null, (Instant) null)));
+  }
+
+  @Test
+  public void partialAnalysis() throws IOException {
+    VideoAnalysis typical = SampleAnalyses.typical(3);
+    VideoAnalysis partial =
+        new VideoAnalysis(
+            null,
+            typical.magnitudeAndScore,
+            typical.commentArray,
+            typical.videoId,
+            typical.videoInfo,
+            new ArrayList<>(Arrays.asList("perspective")));
+
+    assertSameAsGson(partial);
+  }
+
+  @Test
+  public void escapedAndExtremeValues() throws IOException {
+    ArrayList<Comment> comments = new ArrayList<>();
+    comments.add(new Comment("<script>alert('x')</script> & =", Integer.MIN_VALUE));
+    comments.add(new Comment("  \u0000\u001f\\\"🎵\ud800", Integer.MAX_VALUE));
+    assertSameAsGson(
+        new VideoAnalysis(
+            null,
+            new NLPResult(-0.0, 1e-300),
+            comments,
+            "a\"b",
+            new VideoInfo("name", "channel", Instant.ofEpochSecond(-1, 999999999))));
+  }
+
+  @Test
+  public void nullValues() throws IOException {
+    assertEquals(GSON.toJson(null), write(JsonAdapters.VIDEO_ANALYSIS, null));
+    assertEquals(GSON.toJson(null), write(JsonAdapters.COMMENT, null));
+  }
+}
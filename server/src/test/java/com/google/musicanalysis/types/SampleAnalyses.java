@@ -0,0 +1,49 @@
+package com.google.musicanalysis.types;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/** Analyses shaped like the ones the server caches and sends, for tests and benchmarks */
+final class SampleAnalyses {
+  private static final String[] PERSPECTIVE_ATTRIBUTES = {
+    "TOXICITY", "SEVERE_TOXICITY", "IDENTITY_ATTACK", "INSULT", "PROFANITY", "THREAT", "FLIRTATION"
+  };
+
+  private SampleAnalyses() {}
+
+  /**
+   * @param commentCount how many comments the analysis has
+   * @return an analysis with every field set, and a mix of plain, accented, emoji and HTML-ish text
+   */
+  static VideoAnalysis typical(int commentCount) {
+    HashMap<String, String> perspectiveMap = new HashMap<>();
+    for (int i = 0; i < PERSPECTIVE_ATTRIBUTES.length; i++) {
+      perspectiveMap.put(PERSPECTIVE_ATTRIBUTES[i], String.valueOf(0.0123 * (i + 1)));
+    }
+
+    ArrayList<Comment> comments = new ArrayList<>();
+    for (int i = 0; i < commentCount; i++) {
+      String text =
+          i % 4 == 0
+              ? "This song is amazing, I've listened to it " + i + " times"
+              : i % 4 == 1
+                  ? "Café vibes 🎵🎶 <3 & \"quotes\""
+                  : i % 4 == 2 ? "Line one\nline two\ttabbed   separator" : "short";
+      comments.add(new Comment(text, i % 3 == 0 ? null : i * 17));
+    }
+
+    return new VideoAnalysis(
+        perspectiveMap,
+        new NLPResult(12.75, -0.125),
+        comments,
+        "dQw4w9WgXcQ",
+        new VideoInfo(
+            "Never Gonna Give You Up", "Rick Astley", Instant.ofEpochSecond(1256453000, 5000)));
+  }
+
+  /** @return an analysis whose nullable fields are all null */
+  static VideoAnalysis empty() {
+    return new VideoAnalysis(null, null, null, null, null);
+  }
+}